@@ -2,23 +2,40 @@ package plugins;
 
 import qorebot.Channel;
 import qorebot.Database;
+import qorebot.Event;
 import qorebot.EventType;
 import qorebot.QoreBot;
 import qorebot.User;
 import qorebot.plugins.Plugin;
 import qorebot.plugins.PluginLoader;
+import qorebot.plugins.commands.AsyncCommand;
 import qorebot.plugins.commands.Command;
+import qorebot.plugins.commands.CommandHost;
+import qorebot.plugins.commands.CommandLimits;
+import qorebot.plugins.commands.LimitExceededException;
 import qorebot.plugins.commands.message.CommandMessage;
+import qorebot.plugins.commands.message.Message;
+import qorebot.plugins.commands.message.StringMessage;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,17 +54,63 @@ import java.util.logging.Logger;
  * also disable the IdentifyCommand, which will create a vicious circle (users
  * not being able to identify and therefore can't identify).
  * 
+ * For every channel and user, the registered commands are kept in an immutable
+ * table that routes the first word of a message to the commands triggered by
+ * it. These tables are rebuilt when commands are registered or unregistered.
+ * Incoming messages are split lazily, so a message of which the first word
+ * doesn't trigger any command is never split completely.
+ * 
+ * Messages that do trigger commands are compiled into an execution plan, which
+ * is kept in a small LRU cache for each channel or user and the text of the
+ * message, so a repeated command line isn't split and routed again.
+ * 
+ * Results of an {@link AsyncCommand} are not waited for on the thread that
+ * received the message; the reply is sent when all commands have completed.
+ * A line exceeding one of the budgets of {@link CommandLimits} is answered
+ * with an error message. The time of a line counts from the moment it is
+ * received, so splitting it counts as well.
+ * 
  * @author Ralph Broenink
  */
-public class CommandPlugin extends Plugin {
-	private Set<Command> commands = new HashSet<Command>();
+public class CommandPlugin extends Plugin implements CommandHost {
+	/** The maximum number of execution plans kept in the cache. */
+	public static final int PLAN_CACHE_SIZE = 256;
 
-	private Map<Channel, Set<Command>> channels = new HashMap<Channel, Set<Command>>();
-	private Map<User, Set<Command>> users = new HashMap<User, Set<Command>>();
+	private Set<Command> commands = CommandPlugin.newCommandSet();
+	private final PlanCache plans = new PlanCache(CommandPlugin.PLAN_CACHE_SIZE);
+
+	/**
+	 * Logs the failure of an asynchronous command, which has no result unless
+	 * the line exceeded its budget.
+	 */
+	private static final Function<Throwable, String> FAILED = new Function<Throwable, String>() {
+		@Override
+		public String apply(Throwable ex) {
+			Throwable cause = (ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+			if (cause instanceof LimitExceededException)
+				return CommandPlugin.rejected((LimitExceededException) cause);
+
+			Logger.getLogger(CommandPlugin.class.getName()).log(Level.WARNING,
+					"Command failed to handle message.", cause);
+			return null;
+		}
+	};
+
+	private ConcurrentMap<Channel, CommandTable> channels = new ConcurrentHashMap<Channel, CommandTable>();
+	private ConcurrentMap<User, CommandTable> users = new ConcurrentHashMap<User, CommandTable>();
+
+	/**
+	 * Creates a set of commands that may be changed while messages are parsed
+	 * on other threads.
+	 */
+	private static Set<Command> newCommandSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<Command, Boolean>());
+	}
 
 	@Override
 	public void init(QoreBot bot, int id, String name, boolean autoregisterChannels, boolean autoregisterUsers) {
 		super.init(bot, id, name, autoregisterChannels, autoregisterUsers);
+		CommandLimits.configure();
 		this.loadCommands();
 	}
 
@@ -70,33 +133,54 @@ public class CommandPlugin extends Plugin {
 	}
 
 	@Override
-	public void onPrivateMessage(User source, String message) {
-		CommandMessage msg = new CommandMessage(null, message);
-		String result = this.parseMessage(null, source, msg);
-		if (result != null)
-			source.sendMessage(result);
+	public void onPrivateMessage(final User source, String message) {
+		this.execute(null, source, message).thenAccept(new Consumer<String>() {
+			@Override
+			public void accept(String result) {
+				if (result != null)
+					source.sendMessage(result);
+			}
+		});
 	}
 
 	@Override
-	public void onMessage(Channel channel, User sender, String message) {
+	public void handleEvent(Event e) {
+		// Most channel messages aren't commands; their sender doesn't have to
+		// be looked up then
+		if (e.getEvent() == EventType.CHANNEL_ONMESSAGE && !this.isCommandLine(e.getString1()))
+			return;
+		super.handleEvent(e);
+	}
+
+	@Override
+	public void onMessage(final Channel channel, final User sender, String message) {
 		String alternatePrefix = this.getBot().getNick() + ":";
 
-		if (!message.startsWith(Command.PREFIX)
-				&& !message.startsWith(alternatePrefix))
+		if (!this.isCommandLine(message))
 			return;
 
 		if (message.startsWith(alternatePrefix))
 			message = message.substring(alternatePrefix.length());
 
-		CommandMessage msg = new CommandMessage(null, message);
-
-		String result = this.parseMessage(channel, sender, msg);
-		if (result != null)
-			if (channel == null) {
-				sender.sendMessage(result);
-			} else {
-				channel.sendMessage(result);
+		this.execute(channel, sender, message).thenAccept(new Consumer<String>() {
+			@Override
+			public void accept(String result) {
+				if (result != null)
+					if (channel == null) {
+						sender.sendMessage(result);
+					} else {
+						channel.sendMessage(result);
+					}
 			}
+		});
+	}
+
+	/**
+	 * Checks whether a channel message starts with the command prefix or is
+	 * addressed to the bot.
+	 */
+	private boolean isCommandLine(String message) {
+		return message.startsWith(Command.PREFIX) || message.startsWith(this.getBot().getNick() + ":");
 	}
 
 	/**
@@ -113,18 +197,87 @@ public class CommandPlugin extends Plugin {
 	 *            The message.
 	 * @return The first result of any command, or null if none.
 	 */
+	@Override
 	public String parseMessage(Channel channel, User sender, CommandMessage message) {
-		String result = null;
-		if (channel != null) {
-			for (Command c : this.channels.get(channel)) {
-				String r = c.receive(channel, sender, message);
-				result = (result != null || r == null ? result : r);
+		CommandTable table = (channel != null ? this.channels.get(channel) : this.users.get(sender));
+		if (table == null)
+			return null;
+		return this.execute(channel, sender, message, table.route(message));
+	}
+
+	/**
+	 * Parses the text of a received message, using the cached execution plan
+	 * for the channel or user if there is one. Asynchronous commands are not
+	 * waited for, but their results are combined with the results of the other
+	 * commands when they complete.
+	 * 
+	 * @param channel
+	 *            The channel the message came through. May be null.
+	 * @param sender
+	 *            The sender of the message.
+	 * @param text
+	 *            The text of the message.
+	 * @return The first result of any command, which completes with null if
+	 *         there is none.
+	 */
+	private CompletableFuture<String> execute(Channel channel, User sender, String text) {
+		Object target = (channel != null ? channel : sender);
+		CommandTable table = (channel != null ? this.channels.get(channel) : this.users.get(sender));
+		if (table == null)
+			return CompletableFuture.completedFuture(null);
+
+		final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+		boolean line = CommandLimits.startLine();
+		try {
+			ExecutionPlan plan = this.plans.get(target, text, table);
+			if (plan == null) {
+				plan = new ExecutionPlan(table, text);
+				if (plan.commands.length == 0)
+					return CompletableFuture.completedFuture(null);
+				this.plans.put(target, text, plan);
 			}
-		} else {
-			for (Command c : this.users.get(sender)) {
-				String r = c.receive(sender, message);
-				result = (result != null || r == null ? result : r);
+
+			for (Command c : plan.commands) {
+				if (c instanceof AsyncCommand)
+					results.add(((AsyncCommand) c).receiveAsync(channel, sender, plan.message).exceptionally(CommandPlugin.FAILED));
+				else
+					results.add(CompletableFuture.completedFuture(channel != null ? c.receive(channel, sender, plan.message) : c.receive(sender, plan.message)));
+			}
+		} catch (LimitExceededException ex) {
+			return CompletableFuture.completedFuture(CommandPlugin.rejected(ex));
+		} finally {
+			if (line)
+				CommandLimits.endLine();
+		}
+
+		return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()])).thenApply(new Function<Void, String>() {
+			@Override
+			public String apply(Void v) {
+				for (CompletableFuture<String> r : results)
+					if (r.join() != null)
+						return r.join();
+				return null;
 			}
+		});
+	}
+
+	/**
+	 * Counts a line that exceeded its budget and returns the error message for
+	 * its sender.
+	 */
+	private static String rejected(LimitExceededException ex) {
+		CommandLimits.rejected(ex);
+		return Command.wrapErrorMessage(ex.getMessage());
+	}
+
+	/**
+	 * Passes the message to the given commands and returns the first result.
+	 */
+	private String execute(Channel channel, User sender, CommandMessage message, Command[] commands) {
+		String result = null;
+		for (Command c : commands) {
+			String r = (channel != null ? c.receive(channel, sender, message) : c.receive(sender, message));
+			result = (result != null || r == null ? result : r);
 		}
 		return result;
 	}
@@ -167,6 +320,7 @@ public class CommandPlugin extends Plugin {
 	 *            A name starting with plugins. or file:
 	 * @return An instance of the Command.
 	 */
+	@Override
 	public Command createCommand(String name) {
 		try {
 			// The pluginloader can be used, as commands are in the same package
@@ -210,6 +364,7 @@ public class CommandPlugin extends Plugin {
 	 * @param autoregisterChannels
 	 * @param autoregisterUsers
 	 */
+	@Override
 	public void initCommand(Command command, int id, String name, boolean autoregisterChannels, boolean autoregisterUsers) {
 		this.commands.add(command);
 		command.init(this, id, name, autoregisterChannels, autoregisterUsers);
@@ -222,16 +377,13 @@ public class CommandPlugin extends Plugin {
 	 * @param c
 	 *            The command to reload
 	 */
+	@Override
 	public void reloadCommand(Command c) {
 		String name = c.getName();
 		int id = c.getId();
 		boolean autoregisterChannels = c.isAutoregisterChannels();
 		boolean autoregisterUsers = c.isAutoregisterUsers();
-		this.commands.remove(c);
-		for (Channel ch : this.channels.keySet())
-			this.channels.get(ch).remove(c);
-		for (User u : this.users.keySet())
-			this.users.get(u).remove(c);
+		this.unregister(c);
 
 		Command command = this.createCommand(name);
 
@@ -245,7 +397,7 @@ public class CommandPlugin extends Plugin {
 	 * @param channel
 	 * @see QoreBot#registerPlugins(qorebot.Channel)
 	 */
-	public void registerCommands(Channel channel) {
+	public synchronized void registerCommands(Channel channel) {
 		PreparedStatement st = Database.gps("SELECT command_id FROM commands_channels WHERE channel_id = ?");
 		if (st == null)
 			return;
@@ -270,13 +422,13 @@ public class CommandPlugin extends Plugin {
 			}
 		}
 
-		HashSet<Command> channelCommands = new HashSet<Command>();
+		Set<Command> channelCommands = new LinkedHashSet<Command>();
 		for (Command c : this.commands) {
 			if (c.isAutoregisterChannels()
 					|| registerCommands.contains(c.getId()))
 				channelCommands.add(c);
 		}
-		this.channels.put(channel, channelCommands);
+		this.channels.put(channel, new CommandTable(channelCommands));
 	}
 
 	/**
@@ -285,7 +437,7 @@ public class CommandPlugin extends Plugin {
 	 * @param user
 	 * @see QoreBot#registerPlugins(qorebot.User)
 	 */
-	public void registerCommands(User user) {
+	public synchronized void registerCommands(User user) {
 		HashSet<Integer> registerCommands = new HashSet<Integer>();
 		if (user.isIdentified()) {
 
@@ -312,12 +464,12 @@ public class CommandPlugin extends Plugin {
 			}
 		}
 
-		HashSet<Command> channelCommands = new HashSet<Command>();
+		Set<Command> userCommands = new LinkedHashSet<Command>();
 		for (Command c : this.commands) {
 			if (c.isAutoregisterUsers() || registerCommands.contains(c.getId()))
-				channelCommands.add(c);
+				userCommands.add(c);
 		}
-		this.users.put(user, channelCommands);
+		this.users.put(user, new CommandTable(userCommands));
 	}
 
 	/**
@@ -405,10 +557,11 @@ public class CommandPlugin extends Plugin {
 	 * @param user
 	 *            The user to register with
 	 */
-	public void register(Command command, User user) {
-		if (!this.users.containsKey(user))
-			this.users.put(user, new HashSet<Command>());
-		this.users.get(user).add(command);
+	@Override
+	public synchronized void register(Command command, User user) {
+		CommandTable table = this.users.get(user);
+		this.users.put(user, table == null ? new CommandTable(Collections.singleton(command)) : table.with(command));
+		this.plans.clear();
 	}
 
 	/**
@@ -419,10 +572,11 @@ public class CommandPlugin extends Plugin {
 	 * @param channel
 	 *            The channel to register with
 	 */
-	public void register(Command command, Channel channel) {
-		if (!this.channels.containsKey(channel))
-			this.channels.put(channel, new HashSet<Command>());
-		this.channels.get(channel).add(command);
+	@Override
+	public synchronized void register(Command command, Channel channel) {
+		CommandTable table = this.channels.get(channel);
+		this.channels.put(channel, table == null ? new CommandTable(Collections.singleton(command)) : table.with(command));
+		this.plans.clear();
 	}
 
 	/**
@@ -431,6 +585,7 @@ public class CommandPlugin extends Plugin {
 	 * @param command
 	 *            The command to register
 	 */
+	@Override
 	public void register(Command command) {
 		this.commands.add(command);
 		this.registerCommand(command);
@@ -444,9 +599,12 @@ public class CommandPlugin extends Plugin {
 	 * @param user
 	 *            The user to unregister from
 	 */
-	public void unregister(Command command, User user) {
-		for (User u : this.users.keySet())
-			this.users.get(u).remove(command);
+	@Override
+	public synchronized void unregister(Command command, User user) {
+		CommandTable table = this.users.get(user);
+		if (table != null)
+			this.users.put(user, table.without(command));
+		this.plans.clear();
 	}
 	
 	/**
@@ -457,9 +615,12 @@ public class CommandPlugin extends Plugin {
 	 * @param channel
 	 * 			  The channel to unregister from
 	 */
-	public void unregister(Command command, Channel channel) {
-		for (Channel c : this.channels.keySet())
-			this.channels.get(c).remove(command);
+	@Override
+	public synchronized void unregister(Command command, Channel channel) {
+		CommandTable table = this.channels.get(channel);
+		if (table != null)
+			this.channels.put(channel, table.without(command));
+		this.plans.clear();
 	}
 	
 	/**
@@ -468,13 +629,15 @@ public class CommandPlugin extends Plugin {
 	 * @param command
 	 *            The command to unregister
 	 */
-	public void unregister(Command command) {
+	@Override
+	public synchronized void unregister(Command command) {
 		this.commands.remove(command);
 
-		for (User u : this.users.keySet())
-			this.users.get(u).remove(command);
-		for (Channel c : this.channels.keySet())
-			this.channels.get(c).remove(command);
+		for (Map.Entry<User, CommandTable> e : this.users.entrySet())
+			e.setValue(e.getValue().without(command));
+		for (Map.Entry<Channel, CommandTable> e : this.channels.entrySet())
+			e.setValue(e.getValue().without(command));
+		this.plans.clear();
 	}
 
 
@@ -484,6 +647,7 @@ public class CommandPlugin extends Plugin {
 	 * @param command
 	 *            The command name
 	 */
+	@Override
 	public Command getCommand(String command) {
 		for (Command c : this.commands)
 			if (c.getName().equals(command))
@@ -496,6 +660,7 @@ public class CommandPlugin extends Plugin {
 	/**
 	 * Retrieves the current set of commands
 	 */
+	@Override
 	public Set<Command> getCommands() {
 		return this.commands;
 	}
@@ -506,8 +671,10 @@ public class CommandPlugin extends Plugin {
 	 * @param user
 	 *            The user to retrieve a set of commands from
 	 */
+	@Override
 	public Set<Command> getCommands(User user) {
-		return this.users.get(user);
+		CommandTable table = this.users.get(user);
+		return table == null ? null : table.commands;
 	}
 
 	/**
@@ -516,8 +683,175 @@ public class CommandPlugin extends Plugin {
 	 * @param channel
 	 *            The channel to retrieve a set of commands from
 	 */
+	@Override
 	public Set<Command> getCommands(Channel channel) {
-		return this.channels.get(channel);
+		CommandTable table = this.channels.get(channel);
+		return table == null ? null : table.commands;
+	}
+
+	/**
+	 * Immutable set of commands registered for a channel or user, together
+	 * with the routes from the first word of a message to the commands that
+	 * are triggered by it.
+	 */
+	private static final class CommandTable {
+		final Set<Command> commands;
+		private final Map<String, Command[]> routes;
+		private final Command[] fallback;
+
+		CommandTable(Set<Command> commands) {
+			this.commands = Collections.unmodifiableSet(new LinkedHashSet<Command>(commands));
+
+			// Commands without triggers receive every message, so they are
+			// added to every route, keeping the order of the commands.
+			Map<String, List<Command>> routes = new HashMap<String, List<Command>>();
+			List<Command> fallback = new ArrayList<Command>();
+			for (Command c : this.commands) {
+				List<String> triggers = c.getTriggers();
+				if (triggers == null) {
+					fallback.add(c);
+					for (List<Command> route : routes.values())
+						route.add(c);
+					continue;
+				}
+				for (String trigger : triggers) {
+					CommandTable.addRoute(routes, fallback, trigger, c);
+					CommandTable.addRoute(routes, fallback, Command.PREFIX + trigger, c);
+				}
+			}
+
+			this.routes = new HashMap<String, Command[]>();
+			for (Map.Entry<String, List<Command>> e : routes.entrySet())
+				this.routes.put(e.getKey(), e.getValue().toArray(new Command[e.getValue().size()]));
+			this.fallback = fallback.toArray(new Command[fallback.size()]);
+		}
+
+		private static void addRoute(Map<String, List<Command>> routes, List<Command> fallback, String word, Command c) {
+			List<Command> route = routes.get(word);
+			if (route == null) {
+				route = new ArrayList<Command>(fallback);
+				routes.put(word, route);
+			}
+			if (!route.contains(c))
+				route.add(c);
+		}
+
+		/**
+		 * Retrieves the commands that should receive the given message.
+		 */
+		Command[] route(CommandMessage message) {
+			Message head = message.getHead();
+			if (!(head instanceof StringMessage))
+				return this.fallback;
+
+			Command[] route = this.routes.get(((StringMessage) head).getMessage());
+			return route == null ? this.fallback : route;
+		}
+
+		CommandTable with(Command command) {
+			if (this.commands.contains(command))
+				return this;
+			Set<Command> result = new LinkedHashSet<Command>(this.commands);
+			result.add(command);
+			return new CommandTable(result);
+		}
+
+		CommandTable without(Command command) {
+			if (!this.commands.contains(command))
+				return this;
+			Set<Command> result = new LinkedHashSet<Command>(this.commands);
+			result.remove(command);
+			return new CommandTable(result);
+		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * The compiled form of a command line: the completely split message and
+	 * the commands it is routed to. A plan is immutable and may be executed by
+	 * several threads at once. It is only valid for the table it was compiled
+	 * with.
+	 */
+	private static final class ExecutionPlan {
+		final CommandTable table;
+		final CommandMessage message;
+		final Command[] commands;
+
+		/**
+		 * Compiles the text for the given table. If the text doesn't trigger
+		 * any command, the message is not split any further than its first
+		 * word.
+		 */
+		ExecutionPlan(CommandTable table, String text) {
+			this.table = table;
+			this.message = CommandMessage.createLazy(null, text);
+			this.commands = table.route(this.message);
+
+			// Finish splitting before the message is shared
+			if (this.commands.length > 0)
+				this.message.getMessages();
+		}
+	}
+
+	/**
+	 * A bounded cache of execution plans, keyed by the channel or user and the
+	 * text of the message. The least recently used plan is removed when the
+	 * cache is full.
+	 */
+	private static final class PlanCache {
+		private final Map<PlanKey, ExecutionPlan> plans;
+
+		PlanCache(final int capacity) {
+			this.plans = new LinkedHashMap<PlanKey, ExecutionPlan>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<PlanKey, ExecutionPlan> eldest) {
+					return this.size() > capacity;
+				}
+			};
+		}
+
+		/**
+		 * Retrieves the plan for the given target and text, or null if there
+		 * is none that was compiled with the given table.
+		 */
+		synchronized ExecutionPlan get(Object target, String text, CommandTable table) {
+			ExecutionPlan plan = this.plans.get(new PlanKey(target, text));
+			return (plan != null && plan.table == table ? plan : null);
+		}
+
+		synchronized void put(Object target, String text, ExecutionPlan plan) {
+			this.plans.put(new PlanKey(target, text), plan);
+		}
+
+		synchronized void clear() {
+			this.plans.clear();
+		}
+	}
+
+	/**
+	 * The combination of a channel or user and the text of a message.
+	 */
+	private static final class PlanKey {
+		private final Object target;
+		private final String text;
+
+		PlanKey(Object target, String text) {
+			this.target = target;
+			this.text = text;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof PlanKey && ((PlanKey) o).target.equals(this.target) && ((PlanKey) o).text.equals(this.text));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 7;
+			hash = 31 * hash + this.target.hashCode();
+			hash = 31 * hash + this.text.hashCode();
+			return hash;
+		}
+	}
+}
@@ -1,19 +1,17 @@
 package plugins.commands;
 
 
-import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import qorebot.Channel;
 import qorebot.User;
 import qorebot.UserLevel;
-import qorebot.plugins.Plugin;
 import qorebot.plugins.commands.Command;
+import qorebot.plugins.commands.CommandHost;
 import qorebot.plugins.commands.ThreadedCommand;
 import qorebot.plugins.commands.message.CommandMessage;
 
@@ -50,103 +48,96 @@ public class CommandCommand extends ThreadedCommand {
 	
 	@Override
 	public String handleMessage(Channel channel, User user, CommandMessage msg) {
-		try {
-			Plugin commandPlugin = this.getPlugin();
-			if (commandPlugin == null) {
-				Command.sendErrorMessage(channel, user, 
-						"The plugin plugins.CommandPlugin is not loaded, which is kinda weird.");
-				return null;
-			}
-			
-			if (msg.isCommand("commands")) {
-				listCommands(channel, user, commandPlugin);
-				
-			} else if (msg.isCommand("command")) {
-				
-				if (!Command.checkPermissions("managing commands", UserLevel.ADMINISTRATOR, channel, user))
-					return null;
+		CommandHost commandPlugin = this.getHost();
+		if (commandPlugin == null) {
+			Command.sendErrorMessage(channel, user, 
+					"The plugin plugins.CommandPlugin is not loaded, which is kinda weird.");
+			return null;
+		}
 		
+		if (msg.isCommand("commands")) {
+			listCommands(channel, user, commandPlugin);
+			
+		} else if (msg.isCommand("command")) {
 			
-				List<String> arguments = this.parseArguments(channel, user, msg);
+			if (!Command.checkPermissions("managing commands", UserLevel.ADMINISTRATOR, channel, user))
+				return null;
 	
-				if (arguments.size() == 1) { // No arguments
-					/*
-					 * Command: !command 
-					 * Shows all loaded commands.
-					 */
-					listCommand(channel, user, commandPlugin);
+		
+			List<String> arguments = this.parseArguments(channel, user, msg);
 	
-				} else if (arguments.get(1).toLowerCase().equals("install")) {
-					/*
-					 * Command: !plugin install <plugin> <autoloadC> <autoloadU> 
-					 * Installs a plugin into the database.
-					 */
-					if (!Command.checkPermissions("installing commands", UserLevel.OWNER, channel, user))
-						return null;
-					
-					if (arguments.size() < 5) { // Only !plugin load is passed
-						Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
-					} else { // Argument is passed
-						this.installCommand(channel, user, commandPlugin,
-								arguments.get(2), 
-								Command.stringToBool(arguments.get(3)),
-								Command.stringToBool(arguments.get(4)));
-					}
-					
-				} else if (arguments.get(1).toLowerCase().equals("load")) {
-					/*
-					 * Command: !command load <command> 
-					 * Loads the command temporarily for the current user or channel
-					 */
-					
-					if (arguments.size() == 2) { // Only !plugin load is passed
-						Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
-					} else { // Argument is passed
-						this.loadCommand(channel, user, commandPlugin, arguments.get(2));
-					}
+			if (arguments.size() == 1) { // No arguments
+				/*
+				 * Command: !command 
+				 * Shows all loaded commands.
+				 */
+				listCommand(channel, user, commandPlugin);
 	
-				} else if (arguments.get(1).toLowerCase().equals("unload")) {
-					/*
-					 * Command: !command load <command> 
-					 * Loads the command temporarily for the current user or channel
-					 */
-					
-					if (arguments.size() == 2) { // Only !plugin load is passed
-						Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
-					} else { // Argument is passed
-						this.unloadCommand(channel, user, commandPlugin, arguments.get(2));
-					}
-					
-				} else if (arguments.get(1).toLowerCase().equals("add")) {
-					/*
-					 * Command: !command add [command] 
-					 * Loads the command permanent for  the current user or channel
-					 */
-					
-					if (arguments.size() == 2) { // Only !plugin add is passed
-						Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
-						
-					} else {
-						this.addCommand(channel, user, commandPlugin, arguments.get(2));
-					}
+			} else if (arguments.get(1).toLowerCase().equals("install")) {
+				/*
+				 * Command: !plugin install <plugin> <autoloadC> <autoloadU> 
+				 * Installs a plugin into the database.
+				 */
+				if (!Command.checkPermissions("installing commands", UserLevel.OWNER, channel, user))
+					return null;
+				
+				if (arguments.size() < 5) { // Only !plugin load is passed
+					Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
+				} else { // Argument is passed
+					this.installCommand(channel, user, commandPlugin,
+							arguments.get(2), 
+							Command.stringToBool(arguments.get(3)),
+							Command.stringToBool(arguments.get(4)));
+				}
+				
+			} else if (arguments.get(1).toLowerCase().equals("load")) {
+				/*
+				 * Command: !command load <command> 
+				 * Loads the command temporarily for the current user or channel
+				 */
+				
+				if (arguments.size() == 2) { // Only !plugin load is passed
+					Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
+				} else { // Argument is passed
+					this.loadCommand(channel, user, commandPlugin, arguments.get(2));
+				}
 	
-				} else if (arguments.get(1).toLowerCase().equals("reload")) {
-					/*
-					 * Command: !command reload 
-					 * Reloads all commands
-					 */
-					
-					this.reloadCommands(channel, user, commandPlugin);
+			} else if (arguments.get(1).toLowerCase().equals("unload")) {
+				/*
+				 * Command: !command load <command> 
+				 * Loads the command temporarily for the current user or channel
+				 */
+				
+				if (arguments.size() == 2) { // Only !plugin load is passed
+					Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
+				} else { // Argument is passed
+					this.unloadCommand(channel, user, commandPlugin, arguments.get(2));
+				}
+				
+			} else if (arguments.get(1).toLowerCase().equals("add")) {
+				/*
+				 * Command: !command add [command] 
+				 * Loads the command permanent for  the current user or channel
+				 */
+				
+				if (arguments.size() == 2) { // Only !plugin add is passed
+					Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
 					
 				} else {
-					Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
+					this.addCommand(channel, user, commandPlugin, arguments.get(2));
 				}
+	
+			} else if (arguments.get(1).toLowerCase().equals("reload")) {
+				/*
+				 * Command: !command reload 
+				 * Reloads all commands
+				 */
+				
+				this.reloadCommands(channel, user, commandPlugin);
+				
+			} else {
+				Command.sendErrorMessage(channel, user, "Invalid command. Use '!help command' for more information.");
 			}
-			
-		} catch (IllegalAccessException | IllegalArgumentException
-				| NoSuchMethodException | SecurityException
-				| InvocationTargetException e) {
-			Logger.getLogger(CommandCommand.class.getName()).log(Level.SEVERE, null, e);
 		}
 		return null;
 	}
@@ -154,22 +145,18 @@ public class CommandCommand extends ThreadedCommand {
 
 	/**
 	 * Lists all commands for the given channel/user.
-	 * @throws SecurityException 
-	 * @throws NoSuchMethodException 
-	 * @throws InvocationTargetException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
 	 */
-	@SuppressWarnings("unchecked")
-	private void listCommands(Channel channel, User user, Plugin plugin) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
+	private void listCommands(Channel channel, User user, CommandHost plugin) {
 		// It's not a channel, but a nick
 		Set<Command> commands = null;
 		Set<String> userCommands = new TreeSet<String>();
 		if (channel == null) {
-			commands = (Set<Command>) plugin.getClass().getMethod("getCommands", User.class).invoke(plugin, user);
+			commands = plugin.getCommands(user);
 		} else {
-			commands = (Set<Command>) plugin.getClass().getMethod("getCommands", Channel.class).invoke(plugin, channel);
+			commands = plugin.getCommands(channel);
 		}
+		if (commands == null)
+			commands = Collections.emptySet();
 		for (Command c : commands) {
 			userCommands.addAll(c.listedCommands(channel, user));
 		}
@@ -183,28 +170,24 @@ public class CommandCommand extends ThreadedCommand {
 	
 	/**
 	 * Lists all loaded commands (their plugin names) for the given channel/user.
-	 * @throws SecurityException 
-	 * @throws NoSuchMethodException 
-	 * @throws InvocationTargetException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
 	 */
-	@SuppressWarnings("unchecked")
-	private void listCommand(Channel channel, User user, Plugin plugin) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
+	private void listCommand(Channel channel, User user, CommandHost plugin) {
 		// It's not a channel, but a nick
 		if (channel == null) {
 			user.sendMessage("The following commands are loaded for " + user.getNickname() + ":");
 			String r = "";
-			Set<Command> s = (Set<Command>) plugin.getClass().getMethod("getCommands", User.class).invoke(plugin, user);
-			for (Command c : s)
-				r += c.getName() + "; ";
+			Set<Command> s = plugin.getCommands(user);
+			if (s != null)
+				for (Command c : s)
+					r += c.getName() + "; ";
 			user.sendMessage(r);
 		} else {
 			channel.sendMessage("The following commands are loaded for " + channel.getName() + ":");
 			String r = "";
-			Set<Command> s = (Set<Command>) plugin.getClass().getMethod("getCommands", Channel.class).invoke(plugin, channel);
-			for (Command c : s)
-				r += c.getName() + "; ";
+			Set<Command> s = plugin.getCommands(channel);
+			if (s != null)
+				for (Command c : s)
+					r += c.getName() + "; ";
 			channel.sendMessage(r);
 		}
 	}
@@ -212,16 +195,9 @@ public class CommandCommand extends ThreadedCommand {
 
 	/**
 	 * Installs the command
-	 * @throws SecurityException 
-	 * @throws NoSuchMethodException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
 	 */
-	private void installCommand(Channel channel, User user, Plugin plugin, String command, boolean autoregisterChannels, boolean autoregisterUsers) throws IllegalAccessException, IllegalArgumentException, NoSuchMethodException, SecurityException {
-		Object o = null;
-		try {
-			o = plugin.getClass().getMethod("createCommand", String.class).invoke(plugin, command);
-		} catch (InvocationTargetException e) { }
+	private void installCommand(Channel channel, User user, CommandHost plugin, String command, boolean autoregisterChannels, boolean autoregisterUsers) {
+		Object o = plugin.createCommand(command);
 
 		// Check if the command is loaded
 		if (o == null) {
@@ -248,15 +224,10 @@ public class CommandCommand extends ThreadedCommand {
 
 	/**
 	 * Loads the plugin for the given channel/user
-	 * @throws SecurityException 
-	 * @throws NoSuchMethodException 
-	 * @throws InvocationTargetException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
 	 */
-	private void addCommand(Channel channel, User user, Plugin plugin, String command) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
+	private void addCommand(Channel channel, User user, CommandHost plugin, String command) {
 		// Find the command instance in the Bot
-		Object o = plugin.getClass().getMethod("getCommand", String.class).invoke(plugin, command);
+		Object o = plugin.getCommand(command);
 		if (o == null) {
 			Command.sendErrorMessage(channel, user, "Command is unknown. Have you already installed it?");
 			
@@ -264,9 +235,9 @@ public class CommandCommand extends ThreadedCommand {
 			Command c = (Command) o;
 			// Loads the plugin
 			if (channel == null) {
-				plugin.getClass().getMethod("add", Command.class, User.class).invoke(plugin, c, user);
+				c.add(plugin, user);
 			} else {
-				plugin.getClass().getMethod("add", Command.class, Channel.class).invoke(plugin, c, channel);
+				c.add(plugin, channel);
 			}
 			Command.sendMessage(channel, user,
 					"Command loaded. For permanent use, please use 'add'");
@@ -276,15 +247,10 @@ public class CommandCommand extends ThreadedCommand {
 
 	/**
 	 * Loads the plugin for the given channel/user
-	 * @throws SecurityException 
-	 * @throws NoSuchMethodException 
-	 * @throws InvocationTargetException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
 	 */
-	private void loadCommand(Channel channel, User user, Plugin plugin, String command) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
+	private void loadCommand(Channel channel, User user, CommandHost plugin, String command) {
 		// Find the command instance in the Bot
-		Object o = plugin.getClass().getMethod("getCommand", String.class).invoke(plugin, command);
+		Object o = plugin.getCommand(command);
 		if (o == null) {
 			Command.sendErrorMessage(channel, user, "Command is unknown. Have you already installed it?");
 			
@@ -292,9 +258,9 @@ public class CommandCommand extends ThreadedCommand {
 			Command c = (Command) o;
 			// Loads the plugin
 			if (channel == null) {
-				plugin.getClass().getMethod("register", Command.class, User.class).invoke(plugin, c, user);
+				plugin.register(c, user);
 			} else {
-				plugin.getClass().getMethod("register", Command.class, Channel.class).invoke(plugin, c, channel);
+				plugin.register(c, channel);
 			}
 			Command.sendMessage(channel, user,
 					"Command loaded. For permanent use, please use 'add'");
@@ -303,15 +269,10 @@ public class CommandCommand extends ThreadedCommand {
 	
 	/**
 	 * Unloads the plugin for the given channel/user
-	 * @throws SecurityException 
-	 * @throws NoSuchMethodException 
-	 * @throws InvocationTargetException 
-	 * @throws IllegalArgumentException 
-	 * @throws IllegalAccessException 
 	 */
-	private void unloadCommand(Channel channel, User user, Plugin plugin, String command) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchMethodException, SecurityException {
+	private void unloadCommand(Channel channel, User user, CommandHost plugin, String command) {
 		// Find the command instance in the Bot
-		Object o = plugin.getClass().getMethod("getCommand", String.class).invoke(plugin, command);
+		Object o = plugin.getCommand(command);
 		if (o == null) {
 			Command.sendErrorMessage(channel, user, "Command is unknown, so it isn't loaded.");
 			
@@ -319,9 +280,9 @@ public class CommandCommand extends ThreadedCommand {
 			Command c = (Command) o;
 			// Loads the plugin
 			if (channel == null) {
-				plugin.getClass().getMethod("unregister", Command.class, User.class).invoke(plugin, c, user);
+				plugin.unregister(c, user);
 			} else {
-				plugin.getClass().getMethod("unregister", Command.class, Channel.class).invoke(plugin, c, channel);
+				plugin.unregister(c, channel);
 			}
 			Command.sendMessage(channel, user,
 					"Command succesfully unloaded.");
@@ -332,15 +293,14 @@ public class CommandCommand extends ThreadedCommand {
 	/**
 	 * Reloads all commands in the given channel.
 	 */
-	private void reloadCommands(Channel channel, User user, Plugin plugin) {
+	private void reloadCommands(Channel channel, User user, CommandHost plugin) {
 		// This looks a bit weird, but since we're working in a thread
 		// and that reloading stuff is difficult, we're doing it this
 		// way.
 		final Channel c = channel;
 		final User u = user;
-		final Plugin cp = plugin;
+		final CommandHost cp = plugin;
 		(new Thread() {
-			@SuppressWarnings("unchecked")
 			@Override
 			public void run() {
 				Command.sendMessage(c, u, "Reloading all commands...");
@@ -349,9 +309,9 @@ public class CommandCommand extends ThreadedCommand {
 				} catch (InterruptedException ex) { }
 
 				try {
-					Set<Command> cmds = new HashSet<Command>((Set<Command>) cp.getClass().getMethod("getCommands").invoke(cp));
+					Set<Command> cmds = new HashSet<Command>(cp.getCommands());
 					for (Command c : cmds)
-						cp.getClass().getMethod("reloadCommand", Command.class).invoke(cp, c);
+						cp.reloadCommand(c);
 				} catch (Exception e) {
 					Command.sendErrorMessage(c, u, "Fatal error while reloading commands. Got error "
 									+ e.getClass().getName() + " "
@@ -28,6 +28,8 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 
 import org.jibble.pircbot.Colors;
 
@@ -35,15 +37,18 @@ import com.google.gson.stream.JsonReader;
 
 import qorebot.Channel;
 import qorebot.User;
+import qorebot.plugins.commands.AsyncCommand;
 import qorebot.plugins.commands.Command;
-import qorebot.plugins.commands.IOCommand;
+import qorebot.plugins.commands.message.CommandMessage;
 
 /**
  * Retrieves a fact from the Amazing Fact Generator hosted at mentalfloss.com.
+ * The fact is retrieved asynchronously, so waiting for the server doesn't
+ * block the bot.
  *
  * @author Ralph Broenink
  */
-public class FactCommand extends IOCommand {
+public class FactCommand extends AsyncCommand {
 	public static final String FACT_SOURCE = "http://mentalfloss.com/amazingfactgenerator/load-fact.php";
 	
 	@Override
@@ -52,7 +57,19 @@ public class FactCommand extends IOCommand {
 	}
 
 	@Override
-	public String handleMessage(Channel channel, User user, List<String> arguments) {
+	public CompletionStage<String> handleMessageAsync(final Channel channel, final User user, final CommandMessage msg) {
+		return this.supplyAsync(new Callable<String>() {
+			@Override
+			public String call() {
+				return FactCommand.this.retrieveFact(FactCommand.this.parseArguments(channel, user, msg));
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the fact requested by the arguments.
+	 */
+	private String retrieveFact(List<String> arguments) {
 		if (arguments.size() > 2) 
 			return Command.wrapErrorMessage("Usage: !fact or !fact <id>");
 		else {
@@ -70,7 +87,10 @@ public class FactCommand extends IOCommand {
 				}
 			
 				// Fetch the url
-				BufferedReader in = new BufferedReader(new InputStreamReader(((HttpURLConnection) url.openConnection()).getInputStream()));
+				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				connection.setConnectTimeout((int) this.getTimeout());
+				connection.setReadTimeout((int) this.getTimeout());
+				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
 				
 				// Creative JSON reading
 				JsonReader reader = new JsonReader(in);
@@ -2,10 +2,12 @@ package plugins.commands;
 
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 import qorebot.Channel;
 import qorebot.User;
+import qorebot.plugins.commands.AsyncCommand;
 import qorebot.plugins.commands.Command;
-import qorebot.plugins.commands.ThreadedCommand;
 import qorebot.plugins.commands.message.CommandMessage;
 
 /**
@@ -24,7 +26,14 @@ import qorebot.plugins.commands.message.CommandMessage;
  * 
  * @author Ralph Broenink
  */
-public class IdentifyCommand extends ThreadedCommand {
+public class IdentifyCommand extends AsyncCommand {
+	/** The maximum number of users identifying at the same time */
+	public static final int CONCURRENCY = 8;
+
+	@Override
+	protected int getConcurrency() {
+		return CONCURRENCY;
+	}
 
 	@Override
 	public List<String> supportedCommands() {
@@ -40,7 +49,19 @@ public class IdentifyCommand extends ThreadedCommand {
 	}
 	
 	@Override
-	public String handleMessage(Channel channel, User user, CommandMessage msg) {
+	public CompletionStage<String> handleMessageAsync(final Channel channel, final User user, final CommandMessage msg) {
+		return this.supplyAsync(user, new Callable<String>() {
+			@Override
+			public String call() {
+				return IdentifyCommand.this.handle(channel, user, msg);
+			}
+		});
+	}
+
+	/**
+	 * Handles the message. Replies are sent directly to the user.
+	 */
+	private String handle(Channel channel, User user, CommandMessage msg) {
 		// Check whether we're in a channel for private commands
 		if (channel != null) {
 			String action = null;
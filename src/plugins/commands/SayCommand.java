@@ -33,6 +33,11 @@ public class SayCommand extends IOCommand {
 		}
 	}
 	
+	@Override
+	public List<String> getTriggers() {
+		return Command.createList("say", "parse");
+	}
+	
 	@Override
 	public boolean isHandled(Channel channel, User user, CommandMessage msg) {
 		return msg.isCommand("say") || msg.isCommand("parse");
@@ -2,11 +2,13 @@ package plugins.commands;
 
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
 import qorebot.Channel;
 import qorebot.User;
 import qorebot.UserLevel;
+import qorebot.plugins.commands.AsyncCommand;
 import qorebot.plugins.commands.Command;
-import qorebot.plugins.commands.ThreadedCommand;
 import qorebot.plugins.commands.message.CommandMessage;
 
 /**
@@ -15,7 +17,13 @@ import qorebot.plugins.commands.message.CommandMessage;
  * 
  * @author Ralph Broenink
  */
-public class UserCommand extends ThreadedCommand {
+public class UserCommand extends AsyncCommand {
+
+	@Override
+	protected int getConcurrency() {
+		// Levels are changed one at a time
+		return 1;
+	}
 
 	@Override
 	public List<String> supportedCommands() {
@@ -23,7 +31,19 @@ public class UserCommand extends ThreadedCommand {
 	}
 
 	@Override
-	public String handleMessage(Channel channel, User user, CommandMessage msg) {
+	public CompletionStage<String> handleMessageAsync(final Channel channel, final User user, final CommandMessage msg) {
+		return this.supplyAsync(user, new Callable<String>() {
+			@Override
+			public String call() {
+				return UserCommand.this.handle(channel, user, msg);
+			}
+		});
+	}
+
+	/**
+	 * Handles the message. Replies are sent directly to the user.
+	 */
+	private String handle(Channel channel, User user, CommandMessage msg) {
 		List<String> arguments = this.parseArguments(channel, user, msg);
 
 		/*
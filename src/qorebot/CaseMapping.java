@@ -0,0 +1,120 @@
+package qorebot;
+
+/**
+ * Representation of the case mapping an IRC server uses to compare nicknames
+ * and channel names, as advertised by the CASEMAPPING token of the ISUPPORT
+ * reply.
+ * 
+ * @author Ralph Broenink
+ */
+public enum CaseMapping {
+	/**
+	 * Only the letters A to Z are mapped to their lower case equivalents.
+	 */
+	ASCII('Z'),
+
+	/**
+	 * Like ASCII, but []\~ are also considered the upper case equivalents of
+	 * {}|^. This is the default when the server does not advertise anything.
+	 */
+	RFC1459('^'),
+
+	/**
+	 * Like RFC1459, but without the mapping of ~ to ^.
+	 */
+	STRICT_RFC1459(']');
+
+	private final char last;
+
+	private CaseMapping(char last) {
+		this.last = last;
+	}
+
+	/**
+	 * Converts a single character to lower case using this case mapping.
+	 * 
+	 * @param c
+	 *            The character to convert
+	 * @return The lower case equivalent of the character
+	 */
+	public char toLowerCase(char c) {
+		if (c >= 'A' && c <= this.last)
+			return (char) (c + ('a' - 'A'));
+		return c;
+	}
+
+	/**
+	 * Converts a string to lower case using this case mapping.
+	 * 
+	 * @param s
+	 *            The string to convert. Should not be null.
+	 * @return The lower case equivalent of the string
+	 */
+	public String toLowerCase(String s) {
+		int length = s.length();
+		int i = 0;
+		while (i < length && this.toLowerCase(s.charAt(i)) == s.charAt(i))
+			i++;
+		if (i == length)
+			return s;
+
+		char[] chars = s.toCharArray();
+		for (; i < length; i++)
+			chars[i] = this.toLowerCase(chars[i]);
+		return new String(chars);
+	}
+
+	/**
+	 * Checks whether the given names are equal under this case mapping.
+	 * 
+	 * @param a
+	 *            The first name
+	 * @param b
+	 *            The second name
+	 * @return True if both names are equal, ignoring case
+	 */
+	public boolean equals(CharSequence a, CharSequence b) {
+		int length = a.length();
+		if (length != b.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			char ca = a.charAt(i);
+			char cb = b.charAt(i);
+			if (ca != cb && this.toLowerCase(ca) != this.toLowerCase(cb))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates a hash code of the given name that is equal for all names
+	 * that are equal under this case mapping.
+	 * 
+	 * @param s
+	 *            The name to hash
+	 * @return The hash code
+	 */
+	public int hashCode(CharSequence s) {
+		int hash = 0;
+		int length = s.length();
+		for (int i = 0; i < length; i++)
+			hash = 31 * hash + this.toLowerCase(s.charAt(i));
+		return hash;
+	}
+
+	/**
+	 * Determines the case mapping from the value of the CASEMAPPING token.
+	 * 
+	 * @param name
+	 *            The advertised name, like rfc1459 or ascii
+	 * @return The case mapping, or RFC1459 if the name is unknown.
+	 */
+	public static CaseMapping fromName(String name) {
+		if (name.equalsIgnoreCase("ascii"))
+			return CaseMapping.ASCII;
+		else if (name.equalsIgnoreCase("strict-rfc1459"))
+			return CaseMapping.STRICT_RFC1459;
+		else
+			return CaseMapping.RFC1459;
+	}
+}
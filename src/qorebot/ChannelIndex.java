@@ -0,0 +1,139 @@
+package qorebot;
+
+/**
+ * Index of channels by their name, compared using the case mapping of the
+ * server.
+ * 
+ * Lookups read an immutable open addressing table and neither lock nor
+ * allocate, as they are done for every channel event. Changes are rare (only
+ * when channels are loaded or the server advertises another case mapping) and
+ * replace the whole table.
+ * 
+ * @author Ralph Broenink
+ */
+public class ChannelIndex {
+	private volatile Table table = new Table(CaseMapping.RFC1459, new Channel[0]);
+
+	/**
+	 * Retrieves the channel with the given name.
+	 * 
+	 * @param name
+	 *            The channel name, in any case
+	 * @return The channel, or null if not found
+	 */
+	public Channel get(CharSequence name) {
+		if (name == null)
+			return null;
+		return this.table.get(name);
+	}
+
+	/**
+	 * Retrieves the case mapping currently used to compare channel names.
+	 */
+	public CaseMapping getCaseMapping() {
+		return this.table.caseMapping;
+	}
+
+	/**
+	 * Adds a channel to the index, replacing any channel with an equal name.
+	 * 
+	 * @param channel
+	 *            The channel to add
+	 */
+	public synchronized void add(Channel channel) {
+		Table t = this.table;
+		Channel[] channels = new Channel[t.size + 1];
+		int i = 0;
+		for (Channel c : t.slots)
+			if (c != null && !t.caseMapping.equals(c.getName(), channel.getName()))
+				channels[i++] = c;
+		channels[i++] = channel;
+		this.table = new Table(t.caseMapping, ChannelIndex.trim(channels, i));
+	}
+
+	/**
+	 * Removes a channel from the index.
+	 * 
+	 * @param channel
+	 *            The channel to remove
+	 */
+	public synchronized void remove(Channel channel) {
+		Table t = this.table;
+		Channel[] channels = new Channel[t.size];
+		int i = 0;
+		for (Channel c : t.slots)
+			if (c != null && c != channel)
+				channels[i++] = c;
+		this.table = new Table(t.caseMapping, ChannelIndex.trim(channels, i));
+	}
+
+	/**
+	 * Changes the case mapping and rehashes all channels.
+	 * 
+	 * @param caseMapping
+	 *            The new case mapping
+	 */
+	public synchronized void setCaseMapping(CaseMapping caseMapping) {
+		Table t = this.table;
+		if (t.caseMapping == caseMapping)
+			return;
+		Channel[] channels = new Channel[t.size];
+		int i = 0;
+		for (Channel c : t.slots)
+			if (c != null)
+				channels[i++] = c;
+		this.table = new Table(caseMapping, channels);
+	}
+
+	private static Channel[] trim(Channel[] channels, int length) {
+		if (channels.length == length)
+			return channels;
+		Channel[] result = new Channel[length];
+		System.arraycopy(channels, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Immutable open addressing table with linear probing. The table is kept
+	 * at most half full, so a lookup of an unknown name ends quickly.
+	 */
+	private static final class Table {
+		final CaseMapping caseMapping;
+		final Channel[] slots;
+		final int size;
+
+		Table(CaseMapping caseMapping, Channel[] channels) {
+			this.caseMapping = caseMapping;
+			this.size = channels.length;
+
+			int capacity = 8;
+			while (capacity < channels.length * 2)
+				capacity <<= 1;
+			this.slots = new Channel[capacity];
+
+			for (Channel c : channels) {
+				int i = this.indexFor(c.getName());
+				while (this.slots[i] != null)
+					i = (i + 1) & (capacity - 1);
+				this.slots[i] = c;
+			}
+		}
+
+		Channel get(CharSequence name) {
+			int i = this.indexFor(name);
+			Channel c;
+			while ((c = this.slots[i]) != null) {
+				if (this.caseMapping.equals(c.getName(), name))
+					return c;
+				i = (i + 1) & (this.slots.length - 1);
+			}
+			return null;
+		}
+
+		private int indexFor(CharSequence name) {
+			int h = this.caseMapping.hashCode(name);
+			h ^= (h >>> 16);
+			return h & (this.slots.length - 1);
+		}
+	}
+}
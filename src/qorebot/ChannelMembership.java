@@ -0,0 +1,192 @@
+package qorebot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which nicknames are in which channels the bot is in, so
+ * events concerning a single user can be sent to only the channels it shares
+ * with the bot.
+ * 
+ * Nicknames are stored using the case mapping of the server. The index is
+ * maintained by the bot from JOIN, PART, KICK, QUIT, NICK and NAMES messages.
+ * 
+ * @author Ralph Broenink
+ */
+public class ChannelMembership {
+	private final QoreBot bot;
+	private final Map<String, Set<Channel>> channelsByNick = new HashMap<String, Set<Channel>>();
+	private final Map<Channel, Set<String>> nicksByChannel = new HashMap<Channel, Set<String>>();
+
+	/**
+	 * Creates an empty membership index.
+	 * 
+	 * @param bot
+	 *            The bot, used to determine the case mapping of nicknames.
+	 */
+	public ChannelMembership(QoreBot bot) {
+		this.bot = bot;
+	}
+
+	/**
+	 * Retrieves the channels a nickname is known to be in.
+	 * 
+	 * @param nick
+	 *            The nickname
+	 * @return A snapshot of the channels, possibly empty
+	 */
+	public synchronized List<Channel> getChannels(String nick) {
+		Set<Channel> channels = this.channelsByNick.get(this.fold(nick));
+		if (channels == null)
+			return Collections.emptyList();
+		return new ArrayList<Channel>(channels);
+	}
+
+	/**
+	 * Records that a nickname has joined a channel.
+	 * 
+	 * @param channel
+	 *            The channel
+	 * @param nick
+	 *            The nickname
+	 */
+	public synchronized void join(Channel channel, String nick) {
+		String key = this.fold(nick);
+
+		Set<Channel> channels = this.channelsByNick.get(key);
+		if (channels == null) {
+			channels = new HashSet<Channel>();
+			this.channelsByNick.put(key, channels);
+		}
+		channels.add(channel);
+
+		Set<String> nicks = this.nicksByChannel.get(channel);
+		if (nicks == null) {
+			nicks = new HashSet<String>();
+			this.nicksByChannel.put(channel, nicks);
+		}
+		nicks.add(key);
+	}
+
+	/**
+	 * Records that a nickname has left a channel, either by parting or by
+	 * being kicked.
+	 * 
+	 * @param channel
+	 *            The channel
+	 * @param nick
+	 *            The nickname
+	 */
+	public synchronized void part(Channel channel, String nick) {
+		String key = this.fold(nick);
+
+		Set<Channel> channels = this.channelsByNick.get(key);
+		if (channels != null) {
+			channels.remove(channel);
+			if (channels.isEmpty())
+				this.channelsByNick.remove(key);
+		}
+
+		Set<String> nicks = this.nicksByChannel.get(channel);
+		if (nicks != null) {
+			nicks.remove(key);
+			if (nicks.isEmpty())
+				this.nicksByChannel.remove(channel);
+		}
+	}
+
+	/**
+	 * Records that a nickname has quit and removes it from all channels.
+	 * 
+	 * @param nick
+	 *            The nickname
+	 * @return The channels the nickname was in
+	 */
+	public synchronized List<Channel> quit(String nick) {
+		String key = this.fold(nick);
+
+		Set<Channel> channels = this.channelsByNick.remove(key);
+		if (channels == null)
+			return Collections.emptyList();
+
+		for (Channel c : channels) {
+			Set<String> nicks = this.nicksByChannel.get(c);
+			if (nicks != null) {
+				nicks.remove(key);
+				if (nicks.isEmpty())
+					this.nicksByChannel.remove(c);
+			}
+		}
+		return new ArrayList<Channel>(channels);
+	}
+
+	/**
+	 * Records that a nickname has been changed.
+	 * 
+	 * @param oldNick
+	 *            The previous nickname
+	 * @param newNick
+	 *            The new nickname
+	 * @return The channels the nickname is in
+	 */
+	public synchronized List<Channel> changeNick(String oldNick, String newNick) {
+		List<Channel> channels = this.quit(oldNick);
+		for (Channel c : channels)
+			this.join(c, newNick);
+		return channels;
+	}
+
+	/**
+	 * Replaces all members of a channel, for instance after a NAMES reply.
+	 * 
+	 * @param channel
+	 *            The channel
+	 * @param users
+	 *            All users in the channel
+	 */
+	public synchronized void setMembers(Channel channel, org.jibble.pircbot.User[] users) {
+		this.clear(channel);
+		for (org.jibble.pircbot.User u : users)
+			this.join(channel, u.getNick());
+	}
+
+	/**
+	 * Removes all members of a channel, for instance when the bot has left
+	 * it.
+	 * 
+	 * @param channel
+	 *            The channel
+	 */
+	public synchronized void clear(Channel channel) {
+		Set<String> nicks = this.nicksByChannel.remove(channel);
+		if (nicks == null)
+			return;
+
+		for (String key : nicks) {
+			Set<Channel> channels = this.channelsByNick.get(key);
+			if (channels != null) {
+				channels.remove(channel);
+				if (channels.isEmpty())
+					this.channelsByNick.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Removes all members of all channels, for instance when the bot has been
+	 * disconnected.
+	 */
+	public synchronized void clear() {
+		this.channelsByNick.clear();
+		this.nicksByChannel.clear();
+	}
+
+	private String fold(String nick) {
+		return this.bot.getCaseMapping().toLowerCase(nick);
+	}
+}
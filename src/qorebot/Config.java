@@ -4,27 +4,218 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * The settings in the configuration file. The file is read once, into an
+ * immutable snapshot from which all values are retrieved. A watcher thread
+ * reads the file again when it changes and replaces the snapshot at once, so
+ * a value is never retrieved from a partially read file. Listeners are
+ * notified after the snapshot has been replaced.
+ * 
+ * Integer and boolean values are parsed once, when the snapshot is made, so
+ * retrieving them doesn't parse the same string over and over. A value that
+ * isn't a valid integer is logged once for every time the file is read.
+ * 
+ * @author Ralph Broenink
+ */
 public class Config {
 	/** The path to the configuration file. */
 	public static final String CONFIGURATION_FILE = "config.ini";
+	/** The time in milliseconds a changed file should be left alone before it is read */
+	public static final long RELOAD_DELAY = 250;
+
+	/**
+	 * Notified when the configuration file has changed.
+	 */
+	public interface Listener {
+		/**
+		 * Called after the changed configuration file has been read. The new
+		 * values can be retrieved from Config.
+		 */
+		void configurationChanged();
+	}
+
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	/**
+	 * The values of the configuration file at one moment.
+	 */
+	private static final class Snapshot {
+		private final Map<String, String> values;
+		private final Map<String, Integer> ints = new HashMap<String, Integer>();
+		private final Map<String, Boolean> booleans = new HashMap<String, Boolean>();
+		private final Set<String> invalid = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private Snapshot(Map<String, String> values) {
+			this.values = values;
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				String value = entry.getValue().trim();
+				try {
+					this.ints.put(entry.getKey(), Integer.parseInt(value));
+				} catch (NumberFormatException e) {
+				}
+				this.booleans.put(entry.getKey(), value.equalsIgnoreCase("true") || value.equals("1"));
+			}
+		}
+	}
+
+	private static volatile Snapshot snapshot = new Snapshot(Config.loadOrEmpty());
+
+	static {
+		Config.startWatcher();
+	}
 
 	/**
 	 * Retrieves properties from the configuration file. The method is protected
 	 * to prevent plugins from retrieving private settings.
 	 * 
-	 * @return A Properties object holding the properties stored in the
-	 *         configuration file, or null if retrieval failed.
+	 * @return A Properties object holding a copy of the properties stored in
+	 *         the configuration file.
 	 */
 	protected static Properties getConfigFile() {
+		Properties prop = new Properties();
+		prop.putAll(Config.snapshot.values);
+		return prop;
+	}
+
+	/**
+	 * Returns the provided property from the configuration file.
+	 * 
+	 * @param key The key to retrieve.
+	 * @return The value stored with the specified key, or null if something
+	 *         went wrong (ie, the file isn't loaded or the
+	 */
+	protected static String getValueFromConfigFile(String key) {
+		return Config.snapshot.values.get(key);
+	}
+
+	/**
+	 * Returns the provided property from the configuration file as an integer.
+	 * 
+	 * @param key
+	 *            The key to retrieve.
+	 * @param defaultValue
+	 *            The value to return if the property is not set or isn't a
+	 *            valid integer.
+	 * @return The value stored with the specified key, or the default value.
+	 */
+	public static int getInt(String key, int defaultValue) {
+		Snapshot current = Config.snapshot;
+		Integer value = current.ints.get(key);
+		if (value != null)
+			return value;
+
+		if (current.values.containsKey(key) && current.invalid.add(key))
+			Logger.getLogger(Config.class.getName()).log(Level.WARNING,
+					"Configuration value {0} is not a valid integer.", key);
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the provided property from the configuration file as a boolean.
+	 * 
+	 * @param key
+	 *            The key to retrieve.
+	 * @param defaultValue
+	 *            The value to return if the property is not set.
+	 * @return True if the value stored with the specified key is "true" or
+	 *         "1", false if it's something else, or the default value.
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		Boolean value = Config.snapshot.booleans.get(key);
+		return (value == null ? defaultValue : value);
+	}
+
+	/**
+	 * Registers a listener that is notified whenever the configuration file
+	 * has changed.
+	 * 
+	 * @param listener
+	 *            The listener to register
+	 */
+	public static void addListener(Listener listener) {
+		Config.listeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a listener.
+	 * 
+	 * @param listener
+	 *            The listener to unregister
+	 */
+	public static void removeListener(Listener listener) {
+		Config.listeners.remove(listener);
+	}
+
+	/**
+	 * Reads the configuration file again and notifies the listeners if any
+	 * value has changed. When the file is missing or can't be read, the
+	 * current values are kept.
+	 */
+	public static void reload() {
+		Map<String, String> values;
+		synchronized (Config.class) {
+			values = Config.load();
+			if (values == null || values.equals(Config.snapshot.values))
+				return;
+			Config.snapshot = new Snapshot(values);
+		}
+
+		Logger.getLogger(Config.class.getName()).log(Level.INFO,
+				"Configuration file {0} reloaded.", Config.CONFIGURATION_FILE);
+		for (Listener listener : Config.listeners) {
+			try {
+				listener.configurationChanged();
+			} catch (RuntimeException ex) {
+				Logger.getLogger(Config.class.getName()).log(Level.SEVERE,
+						"Configuration listener failed.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Reads the configuration file, or returns no values at all if it couldn't
+	 * be read.
+	 */
+	private static Map<String, String> loadOrEmpty() {
+		Map<String, String> values = Config.load();
+		return (values == null ? Collections.<String, String> emptyMap() : values);
+	}
+
+	/**
+	 * Reads the configuration file.
+	 * 
+	 * @return The values in the file, or null if it doesn't exist or couldn't
+	 *         be read.
+	 */
+	private static Map<String, String> load() {
+		BufferedReader in = null;
 		try {
-			BufferedReader in = new BufferedReader(new FileReader(Config.CONFIGURATION_FILE));
+			in = new BufferedReader(new FileReader(Config.CONFIGURATION_FILE));
 			Properties prop = new Properties();
 			prop.load(in);
-			return prop;
+
+			Map<String, String> values = new HashMap<String, String>();
+			for (String key : prop.stringPropertyNames())
+				values.put(key, prop.getProperty(key));
+			return Collections.unmodifiableMap(values);
 		} catch (FileNotFoundException e) {
 			Logger.getLogger(Config.class.getName()).log(Level.SEVERE,
 					"Configuration file " + Config.CONFIGURATION_FILE + " not found.", e);
@@ -33,22 +224,64 @@ public class Config {
 			Logger.getLogger(Config.class.getName()).log(Level.SEVERE,
 					"Failed loading configuration file " + Config.CONFIGURATION_FILE + ".", e);
 			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException ex1) {
+			}
 		}
 	}
-	
+
 	/**
-	 * Returns the provided property from the configuration file. 
-	 * 
-	 * @param key The key to retrieve.
-	 * @return The value stored with the specified key, or null if something
-	 *         went wrong (ie, the file isn't loaded or the 
+	 * Starts a daemon thread reloading the configuration file whenever the
+	 * directory containing it reports that it has changed.
 	 */
-	protected static String getValueFromConfigFile(String key) {
-		Properties prop = Config.getConfigFile();
-		if (prop != null && prop.containsKey(key)) {
-			return prop.getProperty(key);
-		} else {
-			return null;
+	private static void startWatcher() {
+		final Path file = Paths.get(Config.CONFIGURATION_FILE).toAbsolutePath();
+		final WatchService watcher;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException ex) {
+			Logger.getLogger(Config.class.getName()).log(Level.WARNING,
+					"Changes to the configuration file will not be noticed.", ex);
+			return;
 		}
+
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					WatchKey key;
+					try {
+						key = watcher.take();
+					} catch (InterruptedException ex) {
+						return;
+					}
+
+					boolean changed = false;
+					try {
+						// Wait for the file to be written completely
+						while (key != null) {
+							for (WatchEvent<?> event : key.pollEvents())
+								if (event.kind() == StandardWatchEventKinds.OVERFLOW
+										|| file.getFileName().equals(event.context()))
+									changed = true;
+							if (!key.reset())
+								return;
+							key = changed ? watcher.poll(Config.RELOAD_DELAY, TimeUnit.MILLISECONDS) : null;
+						}
+					} catch (InterruptedException ex) {
+						return;
+					}
+					if (changed)
+						Config.reload();
+				}
+			}
+		}, "qorebot-config-watcher");
+		t.setDaemon(true);
+		t.start();
 	}
 }
@@ -0,0 +1,934 @@
+package qorebot;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of connections to the database. A connection is borrowed by
+ * a single thread at a time and is returned to the pool when the borrowed
+ * handle is closed. Statements created by the pool itself return their
+ * connection when the statement is closed, so code closing its statements
+ * never has to know about the connection.
+ * 
+ * A connection is only validated when it is borrowed after it has been idle
+ * for a while. Otherwise, a broken connection is detected when a statement
+ * fails with a connection error; it is then closed instead of returned to the
+ * pool. A query of a statement created by the pool that fails this way is
+ * retried once on a new connection, replaying the parameters of the statement.
+ * 
+ * Every connection keeps a cache of the statements prepared on it, bounded to
+ * the most recently used ones. Closing a prepared statement returns it to that
+ * cache instead of closing it, so preparing the same query again on the same
+ * connection doesn't require a round trip to the server. A statement is only
+ * used by a single borrower at a time.
+ * 
+ * Code that never closes its connection is given a connection that isn't
+ * borrowed itself, see {@link #getStatementConnection()}. Every statement
+ * created on it borrows a connection until the statement is closed.
+ * 
+ * When all connections are borrowed, borrowing waits for one to be returned,
+ * but no longer than the borrow timeout. A reaper closes connections that
+ * have been idle for too long, and reclaims connections that have been
+ * borrowed for so long that they have probably been leaked.
+ * 
+ * @author Ralph Broenink
+ */
+public class ConnectionPool {
+	/** The interval in milliseconds in which the reaper runs */
+	public static final long REAPER_INTERVAL = 30000;
+	/** The time in milliseconds after which an idle connection is validated */
+	public static final long VALIDATION_INTERVAL = 10000;
+	/** The time in seconds a validation may take */
+	public static final int VALIDATION_TIMEOUT = 2;
+
+	private final String url;
+	private final int maxSize;
+	private volatile long borrowTimeout;
+	private volatile long idleTimeout;
+	private volatile long leakTimeout;
+	private final int statementCacheSize;
+
+	private final Semaphore permits;
+	private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+	private final ScheduledExecutorService reaper;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	private final Connection statementConnection = (Connection) Proxy.newProxyInstance(
+			ConnectionPool.class.getClassLoader(), new Class<?>[] { Connection.class },
+			new StatementConnectionHandler());
+
+	/**
+	 * Creates the pool. No connections are made until one is borrowed.
+	 * 
+	 * @param url
+	 *            The JDBC url of the database
+	 * @param maxSize
+	 *            The maximum number of connections
+	 * @param borrowTimeout
+	 *            The time in milliseconds to wait for a connection
+	 * @param idleTimeout
+	 *            The time in milliseconds after which an idle connection is
+	 *            closed
+	 * @param leakTimeout
+	 *            The time in milliseconds after which a borrowed connection is
+	 *            considered leaked and reclaimed
+	 * @param statementCacheSize
+	 *            The maximum number of prepared statements cached for every
+	 *            connection. 0 disables the cache.
+	 */
+	public ConnectionPool(String url, int maxSize, long borrowTimeout, long idleTimeout, long leakTimeout,
+			int statementCacheSize) {
+		this.url = url;
+		this.maxSize = maxSize;
+		this.borrowTimeout = borrowTimeout;
+		this.idleTimeout = idleTimeout;
+		this.leakTimeout = leakTimeout;
+		this.statementCacheSize = statementCacheSize;
+		this.permits = new Semaphore(maxSize, true);
+
+		this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "qorebot-connection-reaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				ConnectionPool.this.reap();
+			}
+		}, ConnectionPool.REAPER_INTERVAL, ConnectionPool.REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection from the pool. The returned connection should be
+	 * closed to return it to the pool.
+	 * 
+	 * @return The connection, or null if no connection could be made or none
+	 *         was returned within the borrow timeout.
+	 */
+	public Connection getConnection() {
+		PooledConnection pooled = this.borrow();
+		return pooled == null ? null : pooled.handle;
+	}
+
+	/**
+	 * Returns a connection that doesn't have to be closed, since it isn't
+	 * borrowed itself. Every statement created on it borrows a connection of
+	 * the pool, which is returned when the statement is closed, as with
+	 * createStatement() and prepareStatement(). Other calls borrow a
+	 * connection only while they run. Closing it does nothing.
+	 * 
+	 * The connection is always in auto-commit mode, as successive statements
+	 * may run on different connections. Transactions need a borrowed
+	 * connection.
+	 */
+	public Connection getStatementConnection() {
+		return this.statementConnection;
+	}
+
+	/**
+	 * Creates a statement on a borrowed connection. Closing the statement
+	 * returns the connection to the pool.
+	 * 
+	 * @return The statement, or null if it could not be created.
+	 */
+	public Statement createStatement() {
+		PooledConnection pooled = this.borrow();
+		if (pooled == null)
+			return null;
+		try {
+			return this.wrap(pooled, pooled.connection.createStatement(), Statement.class, null, null);
+		} catch (SQLException ex) {
+			Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
+			try {
+				pooled.handle.close();
+			} catch (SQLException ex1) {
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Prepares a statement on a borrowed connection, or takes it from the
+	 * statement cache of the connection. Closing the statement returns it to
+	 * the cache and the connection to the pool.
+	 * 
+	 * @param sql
+	 *            The partial sql query.
+	 * @param options
+	 *            Options to be passed to prepareStatement, or null
+	 * @return The statement, or null if it could not be created.
+	 */
+	public PreparedStatement prepareStatement(String sql, Integer options) {
+		PooledConnection pooled = this.borrow();
+		if (pooled == null)
+			return null;
+		try {
+			PreparedStatement st = pooled.statements.take(sql, options);
+			if (st != null) {
+				this.statementHits.incrementAndGet();
+			} else {
+				this.statementMisses.incrementAndGet();
+				st = (options == null
+						? pooled.connection.prepareStatement(sql)
+						: pooled.connection.prepareStatement(sql, options));
+			}
+			return this.wrap(pooled, st, PreparedStatement.class, sql, options);
+		} catch (SQLException ex) {
+			Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
+			try {
+				pooled.handle.close();
+			} catch (SQLException ex1) {
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Changes the timeouts of the pool. Connections that are waited for,
+	 * idle or borrowed at the moment are subject to the new timeouts.
+	 * 
+	 * @param borrowTimeout
+	 *            The time in milliseconds to wait for a connection
+	 * @param idleTimeout
+	 *            The time in milliseconds after which an idle connection is
+	 *            closed
+	 * @param leakTimeout
+	 *            The time in milliseconds after which a borrowed connection is
+	 *            considered leaked and reclaimed
+	 */
+	public void setTimeouts(long borrowTimeout, long idleTimeout, long leakTimeout) {
+		this.borrowTimeout = borrowTimeout;
+		this.idleTimeout = idleTimeout;
+		this.leakTimeout = leakTimeout;
+	}
+
+	/**
+	 * Closes all idle connections and stops the reaper. Borrowed connections
+	 * are closed when they are returned.
+	 */
+	public void shutdown() {
+		this.reaper.shutdown();
+		List<PooledConnection> closing;
+		synchronized (this.idle) {
+			closing = new ArrayList<PooledConnection>(this.idle);
+			this.idle.clear();
+		}
+		for (PooledConnection pooled : closing)
+			this.destroy(pooled);
+	}
+
+	// -------------------------------------------------------------------------
+	// Metrics
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Returns the maximum number of connections.
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Returns the number of connections currently borrowed.
+	 */
+	public int getActiveCount() {
+		return this.borrowed.size();
+	}
+
+	/**
+	 * Returns the number of connections currently idle in the pool.
+	 */
+	public int getIdleCount() {
+		synchronized (this.idle) {
+			return this.idle.size();
+		}
+	}
+
+	/**
+	 * Returns the number of threads waiting for a connection.
+	 */
+	public int getWaitingCount() {
+		return this.permits.getQueueLength();
+	}
+
+	/**
+	 * Returns the number of connections that have been made.
+	 */
+	public long getCreatedCount() {
+		return this.created.get();
+	}
+
+	/**
+	 * Returns the number of connections that have been closed.
+	 */
+	public long getDestroyedCount() {
+		return this.destroyed.get();
+	}
+
+	/**
+	 * Returns the number of times a connection has been borrowed.
+	 */
+	public long getBorrowCount() {
+		return this.borrows.get();
+	}
+
+	/**
+	 * Returns the number of times no connection was available within the
+	 * borrow timeout.
+	 */
+	public long getTimeoutCount() {
+		return this.timeouts.get();
+	}
+
+	/**
+	 * Returns the number of leaked connections that have been reclaimed.
+	 */
+	public long getLeakCount() {
+		return this.leaks.get();
+	}
+
+	/**
+	 * Returns the number of prepared statements taken from a statement cache.
+	 */
+	public long getStatementHitCount() {
+		return this.statementHits.get();
+	}
+
+	/**
+	 * Returns the number of statements that had to be prepared because they
+	 * were not cached.
+	 */
+	public long getStatementMissCount() {
+		return this.statementMisses.get();
+	}
+
+	// -------------------------------------------------------------------------
+	// Borrowing and returning
+	// -------------------------------------------------------------------------
+
+	private PooledConnection borrow() {
+		try {
+			if (!this.permits.tryAcquire(this.borrowTimeout, TimeUnit.MILLISECONDS)) {
+				this.timeouts.incrementAndGet();
+				Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING,
+						"No database connection available within {0} ms.", this.borrowTimeout);
+				return null;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		PooledConnection pooled = null;
+		while (pooled == null) {
+			synchronized (this.idle) {
+				pooled = this.idle.pollFirst();
+			}
+			if (pooled == null)
+				break;
+			if (System.currentTimeMillis() - pooled.lastUsed > ConnectionPool.VALIDATION_INTERVAL
+					&& !this.isValid(pooled.connection)) {
+				Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING,
+						"Link to database lost. New link will be set up.");
+				this.destroy(pooled);
+				pooled = null;
+			}
+		}
+
+		if (pooled == null) {
+			pooled = this.create();
+			if (pooled == null) {
+				this.permits.release();
+				return null;
+			}
+		}
+
+		pooled.borrow();
+		this.borrowed.add(pooled);
+		this.borrows.incrementAndGet();
+		return pooled;
+	}
+
+	/**
+	 * Returns a connection to the pool. Should be called once for every time
+	 * the connection has been borrowed.
+	 */
+	private void release(PooledConnection pooled) {
+		if (!this.borrowed.remove(pooled))
+			return;
+
+		boolean reusable;
+		try {
+			reusable = !pooled.broken && !pooled.connection.isClosed();
+			if (reusable && !pooled.connection.getAutoCommit()) {
+				pooled.connection.rollback();
+				pooled.connection.setAutoCommit(true);
+			}
+		} catch (SQLException ex) {
+			reusable = false;
+		}
+
+		if (reusable && !this.reaper.isShutdown()) {
+			pooled.lastUsed = System.currentTimeMillis();
+			synchronized (this.idle) {
+				this.idle.addFirst(pooled);
+			}
+		} else {
+			this.destroy(pooled);
+		}
+		this.permits.release();
+	}
+
+	private PooledConnection create() {
+		try {
+			Connection connection = DriverManager.getConnection(this.url);
+			this.created.incrementAndGet();
+			return new PooledConnection(connection);
+		} catch (SQLException ex) {
+			Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE,
+					"Could not create link to database.", ex);
+			return null;
+		}
+	}
+
+	private void destroy(PooledConnection pooled) {
+		this.destroyed.incrementAndGet();
+		pooled.statements.clear();
+		try {
+			pooled.connection.close();
+		} catch (SQLException ex) {
+		}
+	}
+
+	/**
+	 * Checks whether the connection still works.
+	 */
+	private boolean isValid(Connection conn) {
+		try {
+			return conn.isValid(ConnectionPool.VALIDATION_TIMEOUT);
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the broken connection of a borrowed connection by a new one.
+	 * 
+	 * @throws SQLException
+	 *             When no new connection could be made
+	 */
+	private void reconnect(PooledConnection pooled) throws SQLException {
+		try {
+			pooled.connection.close();
+		} catch (SQLException ex) {
+		}
+		this.destroyed.incrementAndGet();
+		pooled.statements.clear();
+
+		pooled.connection = DriverManager.getConnection(this.url);
+		pooled.broken = false;
+		this.created.incrementAndGet();
+	}
+
+	/**
+	 * Checks whether the exception, or any of its causes, indicates that the
+	 * connection itself is broken.
+	 */
+	static boolean isConnectionError(SQLException ex) {
+		for (Throwable e = ex; e != null; e = e.getCause()) {
+			if (e instanceof SQLRecoverableException || e instanceof SQLNonTransientConnectionException)
+				return true;
+			if (e instanceof SQLException) {
+				String state = ((SQLException) e).getSQLState();
+				if (state != null && state.startsWith("08"))
+					return true;
+			}
+			if (e.getCause() == e)
+				break;
+		}
+		return false;
+	}
+
+	/**
+	 * Closes connections that have been idle for too long and reclaims
+	 * connections that have been borrowed for too long.
+	 */
+	private void reap() {
+		long now = System.currentTimeMillis();
+
+		List<PooledConnection> expired = new ArrayList<PooledConnection>();
+		synchronized (this.idle) {
+			Iterator<PooledConnection> it = this.idle.iterator();
+			while (it.hasNext()) {
+				PooledConnection pooled = it.next();
+				if (now - pooled.lastUsed > this.idleTimeout) {
+					expired.add(pooled);
+					it.remove();
+				}
+			}
+		}
+		for (PooledConnection pooled : expired)
+			this.destroy(pooled);
+
+		for (PooledConnection pooled : this.borrowed) {
+			if (now - pooled.borrowedAt > this.leakTimeout && pooled.closed.compareAndSet(false, true)) {
+				this.leaks.incrementAndGet();
+				Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING,
+						"Reclaiming database connection borrowed by thread " + pooled.borrower
+						+ " for " + (now - pooled.borrowedAt) + " ms. Was it closed?");
+				try {
+					pooled.connection.close();
+				} catch (SQLException ex) {
+				}
+				this.release(pooled);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Statement> T wrap(PooledConnection pooled, T statement, Class<T> type, String sql, Integer options) {
+		return (T) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] { type },
+				new StatementHandler(pooled, statement, sql, options));
+	}
+
+	/**
+	 * Calls a method on the object behind a handle, throwing the exception of
+	 * the method itself when it fails.
+	 */
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	/**
+	 * A connection in the pool, together with the handle through which it is
+	 * borrowed and the statements prepared on it.
+	 */
+	private final class PooledConnection {
+		volatile Connection connection;
+		volatile boolean broken = false;
+		final StatementCache statements = new StatementCache(ConnectionPool.this.statementCacheSize);
+		Connection handle;
+		final AtomicBoolean closed = new AtomicBoolean(true);
+		volatile long lastUsed;
+		volatile long borrowedAt;
+		volatile String borrower;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Creates a new handle for the borrowing thread. Handles of earlier
+		 * borrowers have been closed before the connection was returned.
+		 */
+		void borrow() {
+			this.borrowedAt = System.currentTimeMillis();
+			this.borrower = Thread.currentThread().getName();
+			this.closed.set(false);
+			this.handle = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new ConnectionHandler(this));
+		}
+	}
+
+	/**
+	 * The connection returned by getStatementConnection(), which borrows a
+	 * connection for every statement created on it.
+	 */
+	private final class StatementConnectionHandler implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			Class<?>[] types = method.getParameterTypes();
+			if (name.equals("close")) {
+				return null;
+			} else if (name.equals("isClosed")) {
+				return false;
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "Statement connection of " + ConnectionPool.this.url;
+			} else if (name.equals("getAutoCommit")) {
+				return true;
+			} else if (name.equals("setAutoCommit")) {
+				if (!(Boolean) args[0])
+					throw new SQLFeatureNotSupportedException("Transactions need a borrowed connection.");
+				return null;
+			} else if ((name.equals("commit") || name.equals("rollback")) && types.length == 0) {
+				// Every statement has been committed already
+				return null;
+			}
+
+			Statement st = null;
+			if (name.equals("createStatement") && types.length == 0) {
+				st = ConnectionPool.this.createStatement();
+			} else if (name.equals("prepareStatement") && types.length == 1) {
+				st = ConnectionPool.this.prepareStatement((String) args[0], null);
+			} else if (name.equals("prepareStatement") && types.length == 2 && types[1] == int.class) {
+				st = ConnectionPool.this.prepareStatement((String) args[0], (Integer) args[1]);
+			} else if (name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall")) {
+				return this.createOther(method, args);
+			} else {
+				return this.invokeBorrowed(method, args);
+			}
+			if (st == null)
+				throw new SQLException("No database connection available.");
+			return st;
+		}
+
+		/**
+		 * Creates a statement with options the pool doesn't cache on a
+		 * borrowed connection, which is returned when the statement is closed.
+		 */
+		private Object createOther(Method method, Object[] args) throws Throwable {
+			PooledConnection pooled = ConnectionPool.this.borrow();
+			if (pooled == null)
+				throw new SQLException("No database connection available.");
+			try {
+				Statement st = (Statement) ConnectionPool.invoke(pooled.connection, method, args);
+				// Can't be created again the same way on a new connection
+				StatementHandler handler = new StatementHandler(pooled, st, null, null);
+				handler.replayable = false;
+				return Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+						new Class<?>[] { method.getReturnType() }, handler);
+			} catch (Throwable ex) {
+				pooled.handle.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * Calls any other method on a borrowed connection, which is returned
+		 * right away.
+		 */
+		private Object invokeBorrowed(Method method, Object[] args) throws Throwable {
+			PooledConnection pooled = ConnectionPool.this.borrow();
+			if (pooled == null)
+				throw new SQLException("No database connection available.");
+			try {
+				return ConnectionPool.invoke(pooled.handle, method, args);
+			} finally {
+				pooled.handle.close();
+			}
+		}
+	}
+
+	/**
+	 * The handle of a borrowed connection. Closing it returns the connection to
+	 * the pool; after that, the handle can't be used anymore.
+	 */
+	private final class ConnectionHandler implements InvocationHandler {
+		private final PooledConnection pooled;
+		private volatile boolean closed = false;
+
+		ConnectionHandler(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				this.close();
+				return null;
+			} else if (name.equals("isClosed")) {
+				return this.closed || this.pooled.closed.get();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "Pooled " + this.pooled.connection;
+			}
+
+			if (this.closed || this.pooled.closed.get())
+				throw new SQLException("Connection has been returned to the pool.");
+			try {
+				return ConnectionPool.invoke(this.pooled.connection, method, args);
+			} catch (SQLException ex) {
+				if (ConnectionPool.isConnectionError(ex))
+					this.pooled.broken = true;
+				throw ex;
+			}
+		}
+
+		void close() {
+			if (this.closed)
+				return;
+			this.closed = true;
+			if (this.pooled.closed.compareAndSet(false, true))
+				ConnectionPool.this.release(this.pooled);
+		}
+	}
+
+	/**
+	 * A statement created by the pool on a borrowed connection. Closing the
+	 * statement returns the connection to the pool, and a prepared statement
+	 * to the statement cache of the connection; after that, the handle can't
+	 * be used anymore.
+	 * 
+	 * The calls setting the parameters and options of the statement are
+	 * recorded, so a query failing because of a broken connection can be
+	 * executed again on a new connection.
+	 */
+	private final class StatementHandler implements InvocationHandler {
+		private final PooledConnection pooled;
+		private final Connection handle;
+		private final String sql;
+		private final Integer options;
+		private Statement statement;
+
+		private final List<Method> methods = new ArrayList<Method>();
+		private final List<Object[]> arguments = new ArrayList<Object[]>();
+		private boolean replayable = true;
+		private boolean cacheable;
+		private boolean closed = false;
+
+		StatementHandler(PooledConnection pooled, Statement statement, String sql, Integer options) {
+			this.pooled = pooled;
+			this.handle = pooled.handle;
+			this.statement = statement;
+			this.sql = sql;
+			this.options = options;
+			this.cacheable = sql != null;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				this.close();
+				return null;
+			} else if (name.equals("isClosed")) {
+				return this.closed;
+			} else if (name.equals("getConnection")) {
+				return this.handle;
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+
+			if (this.closed)
+				throw new SQLException("Statement has been closed.");
+			if (name.equals("clearParameters")) {
+				this.methods.clear();
+				this.arguments.clear();
+			} else if (name.startsWith("set")) {
+				this.record(method, args);
+			}
+
+			try {
+				return ConnectionPool.invoke(this.statement, method, args);
+			} catch (SQLException ex) {
+				if (!ConnectionPool.isConnectionError(ex))
+					throw ex;
+				this.pooled.broken = true;
+
+				// Only reads are safe to execute again
+				if (!name.equals("executeQuery") || !this.replayable || this.pooled.closed.get())
+					throw ex;
+
+				Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING,
+						"Link to database lost. Query will be retried on a new link.", ex);
+				try {
+					this.recreate();
+				} catch (SQLException ex1) {
+					throw ex;
+				}
+				return ConnectionPool.invoke(this.statement, method, args);
+			}
+		}
+
+		/**
+		 * Returns a prepared statement to the cache of its connection, unless
+		 * the connection is gone or options other than its parameters have
+		 * been changed. Other statements are closed.
+		 */
+		private void close() throws SQLException {
+			if (this.closed)
+				return;
+			this.closed = true;
+
+			try {
+				if (this.cacheable && !this.pooled.broken && !this.handle.isClosed()) {
+					PreparedStatement st = (PreparedStatement) this.statement;
+					ResultSet rs = st.getResultSet();
+					if (rs != null)
+						rs.close();
+					st.clearParameters();
+					st.clearWarnings();
+					this.pooled.statements.put(this.sql, this.options, st);
+				} else {
+					this.statement.close();
+				}
+			} catch (SQLException ex) {
+				try {
+					this.statement.close();
+				} catch (SQLException ex1) {
+				}
+				if (ConnectionPool.isConnectionError(ex))
+					this.pooled.broken = true;
+			} finally {
+				this.handle.close();
+			}
+		}
+
+		private void record(Method method, Object[] args) {
+			// Options of the statement itself would leak to the next user
+			if (method.getDeclaringClass() != PreparedStatement.class)
+				this.cacheable = false;
+			if (args != null)
+				for (Object arg : args)
+					if (arg instanceof InputStream || arg instanceof Reader)
+						this.replayable = false;
+			this.methods.add(method);
+			this.arguments.add(args);
+		}
+
+		/**
+		 * Creates the statement again on a new connection, and replays the
+		 * calls made to set its parameters.
+		 */
+		private void recreate() throws SQLException {
+			ConnectionPool.this.reconnect(this.pooled);
+
+			Connection conn = this.pooled.connection;
+			if (this.sql == null)
+				this.statement = conn.createStatement();
+			else if (this.options == null)
+				this.statement = conn.prepareStatement(this.sql);
+			else
+				this.statement = conn.prepareStatement(this.sql, this.options);
+
+			try {
+				for (int i = 0; i < this.methods.size(); i++)
+					ConnectionPool.invoke(this.statement, this.methods.get(i), this.arguments.get(i));
+			} catch (SQLException ex) {
+				throw ex;
+			} catch (Throwable ex) {
+				throw new SQLException("Could not replay the parameters of the statement.", ex);
+			}
+		}
+	}
+
+	/**
+	 * The prepared statements of a single connection that are not in use,
+	 * keyed by their query and options. When the cache is full, the least
+	 * recently used statement is closed.
+	 */
+	private static final class StatementCache {
+		private final int maxSize;
+		private final Map<String, PreparedStatement> statements;
+
+		StatementCache(int maxSize) {
+			this.maxSize = maxSize;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (this.size() <= StatementCache.this.maxSize)
+						return false;
+					StatementCache.close(eldest.getValue());
+					return true;
+				}
+			};
+		}
+
+		/**
+		 * Removes a statement from the cache, so it can be used.
+		 * 
+		 * @return The statement, or null if none was cached.
+		 */
+		synchronized PreparedStatement take(String sql, Integer options) {
+			return this.statements.remove(StatementCache.key(sql, options));
+		}
+
+		/**
+		 * Returns a statement that is no longer used to the cache. A statement
+		 * for the same query that was returned earlier is closed.
+		 */
+		void put(String sql, Integer options, PreparedStatement statement) {
+			if (this.maxSize <= 0) {
+				StatementCache.close(statement);
+				return;
+			}
+			PreparedStatement previous;
+			synchronized (this) {
+				previous = this.statements.put(StatementCache.key(sql, options), statement);
+			}
+			if (previous != null && previous != statement)
+				StatementCache.close(previous);
+		}
+
+		/**
+		 * Forgets all statements. They are closed together with their
+		 * connection.
+		 */
+		synchronized void clear() {
+			this.statements.clear();
+		}
+
+		private static String key(String sql, Integer options) {
+			return (options == null ? "" : options.toString()) + ":" + sql;
+		}
+
+		private static void close(PreparedStatement statement) {
+			try {
+				statement.close();
+			} catch (SQLException ex) {
+			}
+		}
+	}
+}
@@ -1,23 +1,41 @@
 package qorebot;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * A singleton class representing a database connection with a SQL server.
+ * A singleton class representing a pool of database connections with a SQL
+ * server. Statements retrieved from this class hold a connection of the pool
+ * until they are closed, so they should always be closed after use.
+ * 
+ * The pool is configured in the configuration file:
+ * 
+ * DATABASE_POOL_SIZE             The maximum number of connections (8)
+ * DATABASE_BORROW_TIMEOUT        The time in ms to wait for a connection (5000)
+ * DATABASE_IDLE_TIMEOUT          The time in ms an unused connection is kept
+ *                                (300000)
+ * DATABASE_LEAK_TIMEOUT          The time in ms after which a connection that
+ *                                hasn't been returned is reclaimed (300000)
+ * DATABASE_STATEMENT_CACHE_SIZE  The number of prepared statements cached for
+ *                                every connection (32)
+ * 
+ * The timeouts are changed when the configuration file changes. The other
+ * settings require a restart.
+ * 
+ * Connections returned by getConnection() and gc() are never closed by their
+ * callers. They aren't borrowed themselves; every statement created on them
+ * borrows a connection until it is closed. A connection of the pool itself is
+ * borrowed with borrowConnection() and should be closed.
  * 
  * @author Ralph Broenink
  */
 public class Database {
 	private String connectionUrl = null;
 	private static Database instance = null;
-	private Connection conn = null;
+	private final ConnectionPool pool;
 
 	/**
 	 * Creates a Database instance. Can only be used locally, since it's a
@@ -30,6 +48,21 @@ public class Database {
 			Logger.getLogger(Database.class.getName()).log(Level.SEVERE,
 					"Could not load JDBC driver.", ex);
 		}
+		this.pool = new ConnectionPool(this.getConnectionUrl(),
+				Config.getInt("DATABASE_POOL_SIZE", 8),
+				Config.getInt("DATABASE_BORROW_TIMEOUT", 5000),
+				Config.getInt("DATABASE_IDLE_TIMEOUT", 300000),
+				Config.getInt("DATABASE_LEAK_TIMEOUT", 300000),
+				Config.getInt("DATABASE_STATEMENT_CACHE_SIZE", 32));
+
+		Config.addListener(new Config.Listener() {
+			@Override
+			public void configurationChanged() {
+				Database.this.pool.setTimeouts(Config.getInt("DATABASE_BORROW_TIMEOUT", 5000),
+						Config.getInt("DATABASE_IDLE_TIMEOUT", 300000),
+						Config.getInt("DATABASE_LEAK_TIMEOUT", 300000));
+			}
+		});
 	}
 
 	/**
@@ -76,98 +109,90 @@ public class Database {
 	 * Creates a new instance of the Database connection class or, if it already
 	 * exists, the existing instance.
 	 */
-	public static Database getInstance() {
+	public static synchronized Database getInstance() {
 		if (Database.instance == null)
 			Database.instance = new Database();
 		return Database.instance;
 	}
 
 	/**
-	 * Will determine whether the current connection still works and returns the
-	 * old one or creates a new one when neccesary. When a connection cannot be
-	 * made, returns null.
+	 * Returns a connection that doesn't have to be closed. Every statement
+	 * created on it borrows a connection of the pool, which is returned when
+	 * the statement is closed. It is always in auto-commit mode; use
+	 * borrowConnection() for transactions.
 	 * 
-	 * @return if current connection is active: result ==
-	 *         {@link Database#getCurrentConnection()}; else: result ==
-	 *         {@link Database#getNewConnection()}
+	 * @see ConnectionPool#getStatementConnection()
 	 */
 	public Connection getConnection() {
-		if (!this.isActiveConnection()) {
-			if (this.conn != null)
-				Logger.getLogger(Database.class.getName()).log(Level.WARNING,
-						"Link to database lost. New link will be set up.");
-			return this.getNewConnection();
-		} else {
-			return this.getCurrentConnection();
-		}
+		return this.pool.getStatementConnection();
 	}
 
 	/**
-	 * Returns the current connection; might be null, closed or dead.
+	 * Borrows a working connection from the pool, creating a new one when
+	 * neccesary. The connection should be closed to return it to the pool.
+	 * When a connection cannot be made, returns null.
 	 */
+	public Connection borrowConnection() {
+		return this.pool.getConnection();
+	}
+
+	/**
+	 * Returns a connection that doesn't have to be closed.
+	 * 
+	 * @deprecated Connections are pooled, so there is no current connection.
+	 * @see Database#getConnection()
+	 */
+	@Deprecated
 	public Connection getCurrentConnection() {
-		return this.conn;
+		return this.getConnection();
 	}
 
 	/**
-	 * Creates a new connection and returns it, or null if connecting fails.
+	 * Returns a connection that doesn't have to be closed.
+	 * 
+	 * @deprecated Connections are pooled and created when neccesary.
+	 * @see Database#getConnection()
 	 */
+	@Deprecated
 	public Connection getNewConnection() {
-		if (this.createConnection()) {
-			return this.conn;
-		} else {
-			return null;
-		}
+		return this.getConnection();
+	}
+
+	/**
+	 * Returns the pool of connections, which holds the pool metrics.
+	 */
+	public ConnectionPool getPool() {
+		return this.pool;
 	}
 
 	/**
-	 * Returns a new statement for the current connection. If the connection
-	 * does not exist or is invalid, it will create a new connection. Returns
-	 * null if connection fails.
+	 * Returns a new statement on a connection of the pool. Closing the
+	 * statement returns the connection to the pool. Returns null if
+	 * connection fails.
 	 * 
 	 * @see Database#getConnection()
 	 */
 	public Statement getStatement() {
-		Connection cnt = this.getConnection();
-		if (cnt == null)
-			return null;
-		else
-			try {
-				return cnt.createStatement();
-			} catch (SQLException ex) {
-				Logger.getLogger(Database.class.getName()).log(Level.SEVERE,
-						null, ex);
-				return null;
-			}
+		return this.pool.createStatement();
 	}
 
 	/**
-	 * Returns a new statement for the current connection. If the connection
-	 * does not exist or is invalid, it will create a new connection. Returns
-	 * null if connection fails.
+	 * Returns a new statement on a connection of the pool. Closing the
+	 * statement returns the connection to the pool. Returns null if
+	 * connection fails.
 	 * 
 	 * @param sql
 	 *            The partial sql query.
 	 * @see Database#getConnection()
 	 */
 	public PreparedStatement getPreparedStatement(String sql) {
-		Connection cnt = this.getConnection();
-		if (cnt == null)
-			return null;
-		else
-			try {
-				return cnt.prepareStatement(sql);
-			} catch (SQLException ex) {
-				Logger.getLogger(Database.class.getName()).log(Level.SEVERE,
-						null, ex);
-				return null;
-			}
+		return this.pool.prepareStatement(sql, null);
 	}
 
 	/**
-	 * Returns a new statement for the current connection. If the connection
-	 * does not exist or is invalid, it will create a new connection. Returns
-	 * null if connection fails.
+	 * Returns a new statement on a connection of the pool. Closing the
+	 * statement returns the connection to the pool. Returns null if
+	 * connection fails.
 	 * 
 	 * @param sql
 	 *            The partial sql query.
@@ -176,72 +201,7 @@ public class Database {
 	 * @see Database#getConnection()
 	 */
 	public PreparedStatement getPreparedStatement(String sql, int options) {
-		Connection cnt = this.getConnection();
-		if (cnt == null)
-			return null;
-		else
-			try {
-				return cnt.prepareStatement(sql, options);
-			} catch (SQLException ex) {
-				Logger.getLogger(Database.class.getName()).log(Level.SEVERE,
-						null, ex);
-				return null;
-			}
-	}
-
-	/**
-	 * Checks whether the current connection is active. Method may be expensive.
-	 * 
-	 * @return True if the connection is active.
-	 */
-	private boolean isActiveConnection() {
-		Statement s = null;
-		ResultSet rs = null;
-		try {
-			if (this.conn == null || this.conn.isClosed()) {
-				return false;
-			} else {
-				s = conn.createStatement();
-				// Oracle should use SELECT 1 FROM Dual
-				rs = s.executeQuery("SELECT 1");
-				return rs.next();
-			}
-		} catch (SQLException ex) {
-			// This is not exceptional; this is supposed to happen.
-			return false;
-		} finally {
-			try {
-				if (s != null)
-					s.close();
-			} catch (SQLException ex) {
-			}
-			try {
-				if (rs != null)
-					rs.close();
-			} catch (SQLException ex) {
-			}
-		}
-	}
-
-	/**
-	 * Creates a new connection to the database.
-	 * 
-	 * @return True if connection succeeded.
-	 */
-	private boolean createConnection() {
-		try {
-			this.conn = DriverManager.getConnection(this.getConnectionUrl());
-			return true;
-		} catch (SQLException ex) {
-			Logger.getLogger(Database.class.getName()).log(Level.SEVERE,
-					"Could not create link to database.", ex);
-			try {
-				if (this.conn != null)
-					this.conn.close();
-			} catch (SQLException exx) {
-			}
-		}
-		return false;
+		return this.pool.prepareStatement(sql, options);
 	}
 
 	/**
@@ -1,18 +1,27 @@
 package qorebot;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Representation of a bot event. For every event type, there's a list of
  * accepted (and required) parameters.
+ * 
+ * The user of an event received from the server is looked up when the event
+ * is built. If the user isn't known yet, it is only created the first time it
+ * is requested. Threads requesting it at the same time share that creation.
  *
  * @author Ralph Broenink
  */
 public final class Event {
     private EventType event = EventType.UNKNOWN;
     private Channel channel = null;
-    private User user = null;
+    private volatile User user = null;
+    private String hostmask = null;
+    private FutureTask<User> resolver = null;
     private String string1 = null;
     private String string2 = null;
     private int int1;
@@ -161,6 +170,36 @@ public final class Event {
         this.bool1 = bool1;
     }
     
+    /**
+     * Creates an event with a channel and the hostmask of a user. A known user
+     * is looked up at once; an unknown user is created when it is first
+     * requested.
+     * 
+     * @param event The event id
+     * @param channel The channel
+     * @param bot The bot to look up the user with
+     * @param hostmask The unique identifier of the user
+     * @param string1 The first string, may be null
+     * @param string2 The second string, may be null
+     * @param int1 The first integer
+     */
+    Event(EventType event, Channel channel, final QoreBot bot, final String hostmask, String string1, String string2, int int1) {
+        this(event, channel);
+        this.hostmask = hostmask;
+        this.string1 = string1;
+        this.string2 = string2;
+        this.int1 = int1;
+        this.user = bot.getUserRegistry().getByUniqueId(hostmask);
+        if (this.user == null) {
+            this.resolver = new FutureTask<User>(new Callable<User>() {
+                @Override
+                public User call() {
+                    return bot.getUser(hostmask);
+                }
+            });
+        }
+    }
+    
     /**
      * Creates an event with a given user array
      * 
@@ -196,12 +235,52 @@ public final class Event {
     }
     
     /**
-     * Returns the user
+     * Returns the user, looking it up if only its hostmask is known
      */
     public User getUser() {
-        if (this.user == null)
+        User u = this.resolveUser();
+        if (u == null)
             Logger.getLogger(Event.class.getName()).log(Level.WARNING,
                     "Requested user, but user is not set");
+        return u;
+    }
+    
+    /**
+     * Returns the unique identifier of the user, without looking up the user.
+     * 
+     * @return The hostmask, or null if no user is set
+     */
+    public String getHostmask() {
+        if (this.hostmask != null)
+            return this.hostmask;
+        return this.user != null ? this.user.getUniqueId() : null;
+    }
+    
+    /**
+     * Returns the object this event is about: the channel if it is set,
+     * otherwise the user. Unlike the other getters, this doesn't log when
+     * neither is set.
+     * 
+     * @return The channel or user, or null if neither is set
+     */
+    public Object getTarget() {
+        return this.channel != null ? this.channel : this.resolveUser();
+    }
+    
+    private User resolveUser() {
+        if (this.user != null || this.resolver == null)
+            return this.user;
+        
+        // Does nothing if another thread is already resolving the user
+        this.resolver.run();
+        try {
+            this.user = this.resolver.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Logger.getLogger(Event.class.getName()).log(Level.SEVERE,
+                    "Failed to resolve user " + this.hostmask + ".", ex.getCause());
+        }
         return this.user;
     }
     
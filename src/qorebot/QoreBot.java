@@ -9,8 +9,18 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jibble.pircbot.DccChat;
@@ -18,10 +28,18 @@ import org.jibble.pircbot.DccFileTransfer;
 import org.jibble.pircbot.IrcException;
 import org.jibble.pircbot.NickAlreadyInUseException;
 import org.jibble.pircbot.PircBot;
+import util.KeyedExecutor;
 
 /**
  * The main bot interface, handling all connecting/disconnecting and messages.
  * 
+ * Incoming lines are handled in three stages. The thread reading from the
+ * server only answers PINGs and queues all other lines. A single thread takes
+ * lines from this queue and resolves the users and channels they concern.
+ * The resulting events are passed to the plugins on a pool of threads, in
+ * order for every channel or user, but in parallel for different ones. All
+ * queues are bounded, so a slow stage eventually slows down the stage before.
+ * 
  * @author Ralph Broenink
  */
 public class QoreBot extends PircBot {
@@ -31,11 +49,29 @@ public class QoreBot extends PircBot {
 	public static final String LOGIN = "qorebot";
 	/** The bot finger */
 	public static final String FINGER = "QoreBot 1.0";
+	/** The ISUPPORT reply code, which is not defined by PircBot */
+	public static final int RPL_ISUPPORT = 5;
+	/** The maximum number of lines waiting to be resolved */
+	public static final int INBOUND_CAPACITY = 1024;
+	/** The maximum number of events waiting to be passed to plugins */
+	public static final int DISPATCH_CAPACITY = 4096;
+	/** The maximum number of events waiting to be handled by plugins */
+	public static final int PLUGIN_CAPACITY = 4096;
+	/** The maximum number of nick changes remembered for events built before them */
+	public static final int RENAME_CAPACITY = 1024;
 
 	private String server, nick;
-	private HashSet<Channel> channels;
-	private HashSet<User> users;
-	private HashSet<Plugin> plugins;
+	private Set<Channel> channels;
+	private ChannelIndex channelIndex;
+	private ChannelMembership membership;
+	private volatile String channelTypes = "#&+!";
+	private UserRegistry users;
+	private ConcurrentMap<String, FutureTask<User>> creating;
+	private Map<String, String> renamed;
+	private Set<Plugin> plugins;
+	private BlockingQueue<String> inbound;
+	private KeyedExecutor dispatcher;
+	private KeyedExecutor pluginExecutor;
 
 	/**
 	 * Builds the QoreBot using VERSION, LOGIN AND FINGER but doesn't connect to
@@ -48,10 +84,38 @@ public class QoreBot extends PircBot {
 		this.setVersion(VERSION);
 		this.setLogin(LOGIN);
 
-		this.channels = new HashSet<Channel>();
-		this.users = new HashSet<User>();
-		this.plugins = new HashSet<Plugin>();
+		this.channels = new CopyOnWriteArraySet<Channel>();
+		this.channelIndex = new ChannelIndex();
+		this.membership = new ChannelMembership(this);
+		this.users = new UserRegistry();
+		this.creating = new ConcurrentHashMap<String, FutureTask<User>>();
+		this.renamed = new LinkedHashMap<String, String>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return this.size() > QoreBot.RENAME_CAPACITY;
+			}
+		};
+		this.plugins = new CopyOnWriteArraySet<Plugin>();
+
+		this.inbound = new ArrayBlockingQueue<String>(INBOUND_CAPACITY);
+		this.dispatcher = new KeyedExecutor("qorebot-dispatch",
+				Runtime.getRuntime().availableProcessors(), DISPATCH_CAPACITY);
+		this.pluginExecutor = new KeyedExecutor("qorebot-plugin",
+				Runtime.getRuntime().availableProcessors(), PLUGIN_CAPACITY);
+
+		Thread resolver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				QoreBot.this.resolveLines();
+			}
+		}, "qorebot-resolver");
+		resolver.setDaemon(true);
+		resolver.start();
 
+		User.loadChannelLevels();
+		User.loadLastUniqueIds();
 		this.loadPlugins();
 	}
 
@@ -111,29 +175,60 @@ public class QoreBot extends PircBot {
 	 *            The channel name
 	 */
 	public Channel getChannel(String channel) {
-		for (Channel c : this.channels)
-			if (c.getName().equals(channel))
-				return c;
-		Logger.getLogger(Database.class.getName()).log(Level.FINE,
-				"Could not find channel ''{0}''.", channel);
-		return null;
+		Channel c = this.channelIndex.get(channel);
+		if (c == null)
+			Logger.getLogger(Database.class.getName()).log(Level.FINE,
+					"Could not find channel ''{0}''.", channel);
+		return c;
 	}
 
 	/**
-	 * Checks whether a specific channel exists.
+	 * Checks whether a specific channel exists. The name should start with one
+	 * of the channel types advertised by the server and is compared using the
+	 * case mapping of the server.
 	 * 
 	 * @param channel
 	 *            The channel name
 	 */
 	public boolean isChannel(String channel) {
-		if (channel.charAt(0) != '#')
+		if (channel == null || channel.isEmpty()
+				|| this.channelTypes.indexOf(channel.charAt(0)) < 0)
 			return false;
 
-		for (Channel c : this.channels)
-			if (c.getName().equals(channel))
-				return true;
+		return this.channelIndex.get(channel) != null;
+	}
+
+	/**
+	 * Retrieves the index of channel members.
+	 */
+	public ChannelMembership getChannelMembership() {
+		return this.membership;
+	}
+
+	/**
+	 * Checks whether the given nickname is the current nickname of the bot.
+	 * 
+	 * @param nick
+	 *            The nickname to check
+	 */
+	public boolean isOwnNick(String nick) {
+		return this.getCaseMapping().equals(nick, this.getNick());
+	}
+
+	/**
+	 * Retrieves the case mapping the server uses to compare names, as
+	 * advertised by the server. Defaults to RFC1459.
+	 */
+	public CaseMapping getCaseMapping() {
+		return this.channelIndex.getCaseMapping();
+	}
 
-		return false;
+	/**
+	 * Retrieves the characters a channel name may start with, as advertised by
+	 * the server. Defaults to #&+!
+	 */
+	public String getChannelTypes() {
+		return this.channelTypes;
 	}
 
 	/**
@@ -150,6 +245,7 @@ public class QoreBot extends PircBot {
 			while (result.next()) {
 				Channel ch = new Channel(this, result.getInt("id"), result.getString("name"), result.getString("key"));
 				this.channels.add(ch);
+				this.channelIndex.add(ch);
 				if (result.getBoolean("autojoin"))
 					ch.join();
 			}
@@ -187,14 +283,113 @@ public class QoreBot extends PircBot {
 	 * @param uniqueId
 	 *            The IRC unique identifier
 	 */
-	public User getUser(String uniqueId) {
-		for (User u : this.users) {
-			if (u.getUniqueId().equals(uniqueId))
-				return u;
+	public User getUser(final String uniqueId) {
+		User user = this.users.getByUniqueId(uniqueId);
+		if (user != null)
+			return user;
+
+		// Users with different ids are created in parallel, but a user is
+		// never created twice: threads wanting the same user share its creation
+		FutureTask<User> creation = this.creating.get(uniqueId);
+		if (creation == null) {
+			FutureTask<User> created = new FutureTask<User>(new Callable<User>() {
+				@Override
+				public User call() {
+					// An event built before a nick change wants the user by its
+					// new id
+					String current = QoreBot.this.getCurrentUniqueId(uniqueId);
+					if (!current.equals(uniqueId))
+						return QoreBot.this.getUser(current);
+
+					User u = QoreBot.this.users.getByUniqueId(uniqueId);
+					if (u == null) {
+						u = new User(QoreBot.this, uniqueId);
+						QoreBot.this.users.add(u);
+					}
+					return u;
+				}
+			});
+			creation = this.creating.putIfAbsent(uniqueId, created);
+			if (creation == null) {
+				creation = created;
+				try {
+					created.run();
+				} finally {
+					this.creating.remove(uniqueId, created);
+				}
+			}
+		}
+		return QoreBot.await(creation);
+	}
+
+	/**
+	 * Retrieves a user by its unique IRC identifier if it is known or being
+	 * created, without creating it.
+	 * 
+	 * @param uniqueId
+	 *            The IRC unique identifier
+	 * @return The user, or null if not known
+	 */
+	private User findUser(String uniqueId) {
+		User user = this.users.getByUniqueId(uniqueId);
+		if (user != null)
+			return user;
+		FutureTask<User> creation = this.creating.get(uniqueId);
+		return (creation == null ? null : QoreBot.await(creation));
+	}
+
+	/**
+	 * Waits for the creation of a user, even when interrupted.
+	 */
+	private static User await(FutureTask<User> creation) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return creation.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			throw new IllegalStateException(ex.getCause());
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the unique id a user has now, following the nick changes that
+	 * have been remembered since the given unique id was seen.
+	 * 
+	 * @param uniqueId
+	 *            The IRC unique identifier
+	 */
+	private String getCurrentUniqueId(String uniqueId) {
+		synchronized (this.renamed) {
+			for (int i = 0; i < QoreBot.RENAME_CAPACITY; i++) {
+				String next = this.renamed.get(uniqueId);
+				if (next == null)
+					break;
+				uniqueId = next;
+			}
+		}
+		return uniqueId;
+	}
+
+	/**
+	 * Remembers a nick change, so users of events built before it are found
+	 * by their new unique id.
+	 */
+	private void rename(String previous, String uniqueId) {
+		synchronized (this.renamed) {
+			// The new id is current again, which also keeps the chain acyclic
+			this.renamed.remove(uniqueId);
+			this.renamed.put(previous, uniqueId);
 		}
-		User user = new User(this, uniqueId);
-		this.users.add(user);
-		return user;
 	}
 
 	/**
@@ -206,11 +401,7 @@ public class QoreBot extends PircBot {
 	 *         found.
 	 */
 	public User getUserByNickname(String nickname) {
-		for (User u : this.users) {
-			if (u.getNickname().equals(nickname))
-				return u;
-		}
-		return null;
+		return this.users.getByNickname(nickname);
 	}
 
 	/**
@@ -224,11 +415,7 @@ public class QoreBot extends PircBot {
 	 *         found.
 	 */
 	public User getUserByUsername(String username) {
-		for (User u : this.users) {
-			if (u.getUsername().equals(username))
-				return u;
-		}
-		return null;
+		return this.users.getByUsername(username);
 	}
 
 	/**
@@ -237,6 +424,13 @@ public class QoreBot extends PircBot {
 	 * @return All known users.
 	 */
 	public Set<User> getUsers() {
+		return this.users.getUsers();
+	}
+
+	/**
+	 * Retrieves the registry holding all known users.
+	 */
+	public UserRegistry getUserRegistry() {
 		return this.users;
 	}
 
@@ -266,6 +460,16 @@ public class QoreBot extends PircBot {
 		return this.plugins;
 	}
 
+	/**
+	 * Retrieves the executor shared by all plugins that handle their events
+	 * concurrently.
+	 * 
+	 * @see qorebot.plugins.OrderedPlugin
+	 */
+	public KeyedExecutor getPluginExecutor() {
+		return this.pluginExecutor;
+	}
+
 	/**
 	 * Loads all plugins from the database.
 	 */
@@ -366,7 +570,7 @@ public class QoreBot extends PircBot {
 		this.plugins.remove(p);
 		for (Channel c : this.channels)
 			c.unregister(p);
-		for (User u : this.users)
+		for (User u : this.users.getUsers())
 			u.unregister(p);
 
 		// Plugin plugin = (Plugin) Class.forName(name).newInstance();
@@ -483,7 +687,7 @@ public class QoreBot extends PircBot {
 
 		// Now for all users, check if we should autoregister at all users.
 		if (plugin.isAutoregisterUsers()) {
-			for (User u : this.users)
+			for (User u : this.users.getUsers())
 				u.register(plugin);
 
 			// Otherwise, we will check for all users in the database.
@@ -499,7 +703,7 @@ public class QoreBot extends PircBot {
 				while (result.next()) {
 					registerUsers.add(result.getInt("user_id"));
 				}
-				for (User u : this.users) {
+				for (User u : this.users.getUsers()) {
 					if (u.isIdentified() && registerUsers.contains(u.getId()))
 						u.register(plugin);
 				}
@@ -516,6 +720,90 @@ public class QoreBot extends PircBot {
 		}
 	}
 
+	// -------------------------------------------------------------------------
+	// Inbound pipeline
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Queues a line received from the server for resolving. PINGs are answered
+	 * immediately, so the connection stays alive when the other stages are
+	 * busy. The reader thread never waits for the other stages: when the
+	 * queue is full, the line is dropped.
+	 * 
+	 * @param line
+	 *            The raw line
+	 */
+	@Override
+	protected void handleLine(String line) {
+		if (line.startsWith("PING ")) {
+			super.handleLine(line);
+			return;
+		}
+
+		if (!this.inbound.offer(line))
+			Logger.getLogger(QoreBot.class.getName()).log(Level.WARNING,
+					"Inbound queue is full, dropped line ''{0}''.", line);
+	}
+
+	/**
+	 * Takes lines from the inbound queue and lets PircBot parse them, which
+	 * calls the on-methods below. Runs on the resolver thread.
+	 */
+	private void resolveLines() {
+		while (true) {
+			try {
+				String line = this.inbound.take();
+				super.handleLine(line);
+			} catch (InterruptedException ex) {
+			} catch (RuntimeException ex) {
+				Logger.getLogger(QoreBot.class.getName()).log(Level.SEVERE,
+						"Failed to handle line.", ex);
+			}
+		}
+	}
+
+	/**
+	 * Passes an event to a channel on the dispatch pool. Events for the same
+	 * channel are received in order.
+	 * 
+	 * @param channel
+	 *            The channel to receive the event
+	 * @param event
+	 *            The event
+	 */
+	protected void dispatch(final Channel channel, final Event event) {
+		// Events of channels we don't know of have nobody to receive them
+		if (channel == null) {
+			Logger.getLogger(QoreBot.class.getName()).log(Level.FINE,
+					"Dropped event {0} without channel.", event.getEvent());
+			return;
+		}
+		this.dispatcher.execute(channel, new Runnable() {
+			@Override
+			public void run() {
+				channel.receive(event);
+			}
+		});
+	}
+
+	/**
+	 * Passes an event to a user on the dispatch pool. Events for the same user
+	 * are received in order.
+	 * 
+	 * @param user
+	 *            The user to receive the event
+	 * @param event
+	 *            The event
+	 */
+	protected void dispatch(final User user, final Event event) {
+		this.dispatcher.execute(user, new Runnable() {
+			@Override
+			public void run() {
+				user.receive(event);
+			}
+		});
+	}
+
 	// -------------------------------------------------------------------------
 	// Handles all bot calls
 	// -------------------------------------------------------------------------
@@ -530,6 +818,8 @@ public class QoreBot extends PircBot {
 	 */
 	@Override
 	protected void onDisconnect() {
+		this.membership.clear();
+
 		int retry = 0;
 		while (!this.isConnected() && retry < 10) {
 			try {
@@ -566,6 +856,8 @@ public class QoreBot extends PircBot {
 			String login = tokenizer.nextToken();
 			String hostname = tokenizer.nextToken();
 			this.onWhoisUser(nick, login, hostname);
+		} else if (code == QoreBot.RPL_ISUPPORT) {
+			this.onServerSupport(response);
 		}
 	}
 
@@ -577,44 +869,75 @@ public class QoreBot extends PircBot {
 
 	@Override
 	protected void onNickChange(String oldNick, String login, String hostname, String newNick) {
-		User user = this.getUser(oldNick, login, hostname);
-		user.setUniqueId(User.createUniqueId(newNick, login, hostname));
+		String previous = User.createUniqueId(oldNick, login, hostname);
+		String uniqueId = User.createUniqueId(newNick, login, hostname);
+
+		// Only a user that might be identified by its last unique id is
+		// created; its last unique id has to move along
+		User user = this.findUser(previous);
+		if (user == null && User.mightBeIdentified(previous))
+			user = this.getUser(previous);
+
+		// A user created from here on, for an event built before the change,
+		// is created with its new id. One created before is found now.
+		this.rename(previous, uniqueId);
+		if (user == null)
+			user = this.findUser(previous);
+
+		if (user == null) {
+			for (Channel c : this.membership.changeNick(oldNick, newNick))
+				this.dispatch(c, new Event(EventType.CHANNEL_ONNICKCHANGE, c, this, uniqueId, oldNick, newNick, 0));
+			return;
+		}
 
-		for (Channel c : this.channels) {
-			c.receive(new Event(EventType.CHANNEL_ONNICKCHANGE, c, user, oldNick, newNick));
+		user.setUniqueId(uniqueId);
+		for (Channel c : this.membership.changeNick(oldNick, newNick)) {
+			this.dispatch(c, new Event(EventType.CHANNEL_ONNICKCHANGE, c, user, oldNick, newNick));
 		}
-		user.receive(new Event(EventType.USER_ONNICKCHANGE, user, oldNick, newNick));
+		this.dispatch(user, new Event(EventType.USER_ONNICKCHANGE, user, oldNick, newNick));
 	}
 
 	@Override
 	protected void onQuit(String sourceNick, String sourceLogin, String sourceHostname, String reason) {
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		for (Channel c : this.channels) {
-			c.receive(new Event(EventType.CHANNEL_ONQUIT, c, source, reason));
+		// A user that isn't known yet is only created if a plugin asks for it
+		String uniqueId = User.createUniqueId(sourceNick, sourceLogin, sourceHostname);
+		User source = this.findUser(uniqueId);
+		if (source == null) {
+			for (Channel c : this.membership.quit(sourceNick))
+				this.dispatch(c, new Event(EventType.CHANNEL_ONQUIT, c, this, uniqueId, reason, null, 0));
+			return;
+		}
+
+		for (Channel c : this.membership.quit(sourceNick)) {
+			this.dispatch(c, new Event(EventType.CHANNEL_ONQUIT, c, source, reason));
 		}
-		source.receive(new Event(EventType.USER_ONQUIT, source, reason));
+		this.dispatch(source, new Event(EventType.USER_ONQUIT, source, reason));
 	}
 
 	// Send to either a channel or a user
 
 	@Override
 	protected void onAction(String sender, String login, String hostname, String target, String action) {
-		User user = this.getUser(sender, login, hostname);
 		if (this.isChannel(target)) {
 			Channel c = this.getChannel(target);
-			c.receive(new Event(EventType.CHANNEL_ONACTION, c, user, action));
-		} else
-			user.receive(new Event(EventType.USER_ONACTION, user, action));
+			this.dispatch(c, new Event(EventType.CHANNEL_ONACTION, c, this,
+					User.createUniqueId(sender, login, hostname), action, null, 0));
+		} else {
+			User user = this.getUser(sender, login, hostname);
+			this.dispatch(user, new Event(EventType.USER_ONACTION, user, action));
+		}
 	}
 
 	@Override
 	protected void onNotice(String sourceNick, String sourceLogin, String sourceHostname, String target, String notice) {
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
 		if (this.isChannel(target)) {
 			Channel c = this.getChannel(target);
-			c.receive(new Event(EventType.CHANNEL_ONNOTICE, c, source, notice));
-		} else
-			source.receive(new Event(EventType.USER_ONNOTICE, source, notice));
+			this.dispatch(c, new Event(EventType.CHANNEL_ONNOTICE, c, this,
+					User.createUniqueId(sourceNick, sourceLogin, sourceHostname), notice, null, 0));
+		} else {
+			User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
+			this.dispatch(source, new Event(EventType.USER_ONNOTICE, source, notice));
+		}
 	}
 
 	// Only send it to users
@@ -622,13 +945,13 @@ public class QoreBot extends PircBot {
 	@Override
 	protected void onUserMode(String targetNick, String sourceNick, String sourceLogin, String sourceHostname, String mode) {
 		User u = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		u.receive(new Event(EventType.USER_ONUSERMODE, u, mode));
+		this.dispatch(u, new Event(EventType.USER_ONUSERMODE, u, mode));
 	}
 
 	@Override
 	protected void onPrivateMessage(String sender, String login, String hostname, String message) {
 		User u = this.getUser(sender, login, hostname);
-		u.receive(new Event(EventType.USER_ONPRIVATEMESSAGE, u, message));
+		this.dispatch(u, new Event(EventType.USER_ONPRIVATEMESSAGE, u, message));
 	}
 
 	// Send to channels
@@ -636,212 +959,231 @@ public class QoreBot extends PircBot {
 	@Override
 	protected void onChannelInfo(String channel, int userCount, String topic) {
 		Channel c = this.getChannel(channel);
-		c.receive(new Event(EventType.CHANNEL_ONCHANNELINFO, c, userCount,
+		this.dispatch(c, new Event(EventType.CHANNEL_ONCHANNELINFO, c, userCount,
 				topic));
 	}
 
 	@Override
 	protected void onDeop(String channel, String sourceNick, String sourceLogin, String sourceHostname, String recipient) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONDEOP, c, source, recipient));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONDEOP, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), recipient, null, 0));
 	}
 
 	@Override
 	protected void onDeVoice(String channel, String sourceNick, String sourceLogin, String sourceHostname, String recipient) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONDEVOICE, c, source, recipient));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONDEVOICE, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), recipient, null, 0));
 	}
 
 	@Override
 	protected void onInvite(String targetNick, String sourceNick, String sourceLogin, String sourceHostname, String channel) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONINVITE, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONINVITE, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onJoin(String channel, String sender, String login, String hostname) {
 		Channel c = this.getChannel(channel);
-		User user = this.getUser(sender, login, hostname);
-		c.receive(new Event(EventType.CHANNEL_ONJOIN, c, user));
+		String uniqueId = User.createUniqueId(sender, login, hostname);
+		if (c != null)
+			this.membership.join(c, sender);
+		// Whoever joins with an id that changed its nick before is not the
+		// user that changed its nick
+		synchronized (this.renamed) {
+			this.renamed.remove(uniqueId);
+		}
+		this.dispatch(c, new Event(EventType.CHANNEL_ONJOIN, c, this, uniqueId, null, null, 0));
 	}
 
 	@Override
 	protected void onKick(String channel, String kickerNick, String kickerLogin, String kickerHostname, String recipientNick, String reason) {
 		Channel c = this.getChannel(channel);
-		User kicker = this.getUser(kickerNick, kickerLogin, kickerHostname);
-		c.receive(new Event(EventType.CHANNEL_ONKICK, c, kicker, recipientNick, reason));
+		if (c != null) {
+			if (this.isOwnNick(recipientNick))
+				this.membership.clear(c);
+			else
+				this.membership.part(c, recipientNick);
+		}
+		this.dispatch(c, new Event(EventType.CHANNEL_ONKICK, c, this,
+				User.createUniqueId(kickerNick, kickerLogin, kickerHostname), recipientNick, reason, 0));
 	}
 
 	@Override
 	protected void onMessage(String channel, String sender, String login, String hostname, String message) {
 		Channel c = this.getChannel(channel);
-		User user = this.getUser(sender, login, hostname);
-		c.receive(new Event(EventType.CHANNEL_ONMESSAGE, c, user, message));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONMESSAGE, c, this,
+				User.createUniqueId(sender, login, hostname), message, null, 0));
 	}
 
 	@Override
 	protected void onMode(String channel, String sourceNick, String sourceLogin, String sourceHostname, String mode) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONMODE, c, source, mode));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONMODE, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), mode, null, 0));
 	}
 
 	@Override
 	protected void onOp(String channel, String sourceNick, String sourceLogin, String sourceHostname, String recipient) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONOP, c, source, recipient));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONOP, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), recipient, null, 0));
 	}
 
 	@Override
 	protected void onPart(String channel, String sender, String login, String hostname) {
 		Channel c = this.getChannel(channel);
-		User user = this.getUser(sender, login, hostname);
-		c.receive(new Event(EventType.CHANNEL_ONPART, c, user));
+		if (c != null) {
+			if (this.isOwnNick(sender))
+				this.membership.clear(c);
+			else
+				this.membership.part(c, sender);
+		}
+		this.dispatch(c, new Event(EventType.CHANNEL_ONPART, c, this,
+				User.createUniqueId(sender, login, hostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemoveChannelBan(String channel, String sourceNick, String sourceLogin, String sourceHostname, String hostmask) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVECHANNELBAN, c, source,
-				hostmask));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVECHANNELBAN, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), hostmask, null, 0));
 	}
 
 	@Override
 	protected void onRemoveChannelKey(String channel, String sourceNick, String sourceLogin, String sourceHostname, String key) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVECHANNELKEY, c, source,
-				key));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVECHANNELKEY, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), key, null, 0));
 	}
 
 	@Override
 	protected void onRemoveChannelLimit(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVECHANNELLIMIT, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVECHANNELLIMIT, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemoveInviteOnly(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVEINVITEONLY, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVEINVITEONLY, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemoveModerated(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVEMODERATED, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVEMODERATED, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemoveNoExternalMessages(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVENOEXTERNALMESSAGES, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVENOEXTERNALMESSAGES, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemovePrivate(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVEPRIVATE, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVEPRIVATE, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemoveSecret(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVESECRET, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVESECRET, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onRemoveTopicProtection(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONREMOVETOPICPROTECTION, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONREMOVETOPICPROTECTION, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onSetChannelBan(String channel, String sourceNick, String sourceLogin, String sourceHostname, String hostmask) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETCHANNELBAN, c, source, hostmask));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETCHANNELBAN, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), hostmask, null, 0));
 	}
 
 	@Override
 	protected void onSetChannelKey(String channel, String sourceNick, String sourceLogin, String sourceHostname, String key) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETCHANNELKEY, c, source, key));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETCHANNELKEY, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), key, null, 0));
 	}
 
 	@Override
 	protected void onSetChannelLimit(String channel, String sourceNick, String sourceLogin, String sourceHostname, int limit) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETCHANNELLIMIT, c, source, limit));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETCHANNELLIMIT, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, limit));
 	}
 
 	@Override
 	protected void onSetInviteOnly(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETINVITEONLY, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETINVITEONLY, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onSetModerated(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETMODERATED, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETMODERATED, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onSetNoExternalMessages(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETNOEXTERNALMESSAGES, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETNOEXTERNALMESSAGES, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onSetPrivate(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETPRIVATE, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETPRIVATE, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onSetSecret(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETSECRET, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETSECRET, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onSetTopicProtection(String channel, String sourceNick, String sourceLogin, String sourceHostname) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONSETTOPICPROTECTION, c, source));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONSETTOPICPROTECTION, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), null, null, 0));
 	}
 
 	@Override
 	protected void onTopic(String channel, String topic, String setBy, long date, boolean changed) {
 		Channel c = this.getChannel(channel);
-		c.receive(new Event(EventType.CHANNEL_ONTOPIC, c, topic, setBy, date,
+		this.dispatch(c, new Event(EventType.CHANNEL_ONTOPIC, c, topic, setBy, date,
 				changed));
 	}
 
 	@Override
 	protected void onUserList(String channel, org.jibble.pircbot.User[] users) {
 		Channel c = this.getChannel(channel);
-		c.receive(new Event(EventType.CHANNEL_ONUSERLIST, c, users));
+		if (c != null)
+			this.membership.setMembers(c, users);
+		this.dispatch(c, new Event(EventType.CHANNEL_ONUSERLIST, c, users));
 		// Perform a WHOIS on every user we don't know yet
 		for (org.jibble.pircbot.User u : users) {
 			if (this.getUserByNickname(u.getNick()) == null)
@@ -852,8 +1194,8 @@ public class QoreBot extends PircBot {
 	@Override
 	protected void onVoice(String channel, String sourceNick, String sourceLogin, String sourceHostname, String recipient) {
 		Channel c = this.getChannel(channel);
-		User source = this.getUser(sourceNick, sourceLogin, sourceHostname);
-		c.receive(new Event(EventType.CHANNEL_ONVOICE, c, source, recipient));
+		this.dispatch(c, new Event(EventType.CHANNEL_ONVOICE, c, this,
+				User.createUniqueId(sourceNick, sourceLogin, sourceHostname), recipient, null, 0));
 	}
 	
 	// -------------------------------------------------------------------------
@@ -879,4 +1221,26 @@ public class QoreBot extends PircBot {
     protected void onWhoisUser(String nick, String login, String hostname) {
     	this.getUser(nick, login, hostname);
     }
+
+	/**
+	 * Receive the features supported by the server. The CASEMAPPING and
+	 * CHANTYPES tokens are used to look up channels.
+	 * 
+	 * @param response
+	 *            The ISUPPORT response, starting with our nick and ending
+	 *            with a text after a colon.
+	 */
+	protected void onServerSupport(String response) {
+		StringTokenizer tokenizer = new StringTokenizer(response);
+		tokenizer.nextToken(); // not interesting info (we get our Nick back)
+		while (tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken();
+			if (token.startsWith(":"))
+				break;
+			if (token.startsWith("CASEMAPPING="))
+				this.channelIndex.setCaseMapping(CaseMapping.fromName(token.substring(12)));
+			else if (token.startsWith("CHANTYPES="))
+				this.channelTypes = token.substring(10);
+		}
+	}
 }
@@ -5,9 +5,21 @@ import qorebot.plugins.Pluginable;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import util.BloomFilter;
 import util.Crypt;
+import util.LongByteHashMap;
 
 /**
  * Represents an user
@@ -15,6 +27,48 @@ import util.Crypt;
  * @author Ralph Broenink
  */
 public class User extends Pluginable {
+	/** The value in channelLevels for a channel without a level */
+	private static final byte NO_LEVEL = Byte.MIN_VALUE;
+
+	/**
+	 * The channel levels of users, by channel id and user id. Shared by all
+	 * User objects of the same user.
+	 */
+	private static final LongByteHashMap channelLevels = new LongByteHashMap();
+	/** Whether channelLevels holds the levels of all users */
+	private static volatile boolean allChannelLevelsLoaded = false;
+	/** The users whose levels have been added to channelLevels */
+	private static final Set<Integer> channelLevelsLoaded = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	/** The number of locks the channel levels of users are spread over */
+	private static final int CHANNEL_LEVEL_LOCKS = 64;
+	/**
+	 * Held by anyone reading levels from the database into channelLevels or
+	 * changing them, so a level read before a change can't replace the
+	 * changed level. Loading the levels of all users takes the write lock,
+	 * everything else a read lock and the lock of the user.
+	 */
+	private static final ReadWriteLock channelLevelsLock = new ReentrantReadWriteLock();
+	private static final ReentrantLock[] channelLevelLocks = new ReentrantLock[User.CHANNEL_LEVEL_LOCKS];
+
+	static {
+		for (int i = 0; i < User.CHANNEL_LEVEL_LOCKS; i++)
+			User.channelLevelLocks[i] = new ReentrantLock();
+	}
+
+	/**
+	 * All last known unique ids in the database, or null if they have not
+	 * been loaded. Ids that have been cleared remain in the filter.
+	 */
+	private static volatile BloomFilter lastUniqueIds = null;
+	private static final Object lastUniqueIdsLock = new Object();
+	/** The time in ms to wait before loading the last unique ids again after the first failure */
+	private static final long LAST_UNIQUE_IDS_RETRY_MIN = 5000;
+	/** The maximum time in ms to wait before loading the last unique ids again */
+	private static final long LAST_UNIQUE_IDS_RETRY_MAX = 300000;
+	/** The time at which loading the last unique ids may be retried */
+	private static volatile long lastUniqueIdsRetryAt = 0;
+	private static long lastUniqueIdsRetryDelay = User.LAST_UNIQUE_IDS_RETRY_MIN;
+	private static final AtomicBoolean lastUniqueIdsRetrying = new AtomicBoolean(false);
 
 	private QoreBot bot;
 
@@ -46,30 +100,37 @@ public class User extends Pluginable {
 		this.username = null;
 		this.id = 0;
 
-		PreparedStatement st = Database.gps("SELECT id, username, level FROM users WHERE last_unique_id = ? LIMIT 0,1");
-
-		if (st == null) {
-			this.minLevel = UserLevel.UNKNOWN;
+		BloomFilter known = User.getLastUniqueIds();
+		if (known != null && !known.mightContain(uniqueId)) {
+			// Most users have never identified, so the database doesn't have
+			// to be asked about them
+			this.minLevel = UserLevel.NONE;
 		} else {
-			try {
-				st.setString(1, uniqueId);
-				ResultSet result = st.executeQuery();
-				if (result.next()) {
-					this.id = result.getInt("id");
-					this.minLevel = UserLevel.fromInteger(result.getInt("level"));
-					this.username = result.getString("username");
-					this.identified = true;
-				} else {
-					this.minLevel = UserLevel.NONE;
-				}
-			} catch (SQLException ex) {
-				Logger.getLogger(User.class.getName()).log(Level.SEVERE,
-						"Failed to user information for " + uniqueId, ex);
-			} finally {
+			PreparedStatement st = Database.gps("SELECT id, username, level FROM users WHERE last_unique_id = ? LIMIT 0,1");
+
+			if (st == null) {
+				this.minLevel = UserLevel.UNKNOWN;
+			} else {
 				try {
-					if (st != null)
-						st.close();
-				} catch (SQLException ex1) {
+					st.setString(1, uniqueId);
+					ResultSet result = st.executeQuery();
+					if (result.next()) {
+						this.id = result.getInt("id");
+						this.minLevel = UserLevel.fromInteger(result.getInt("level"));
+						this.username = result.getString("username");
+						this.identified = true;
+					} else {
+						this.minLevel = UserLevel.NONE;
+					}
+				} catch (SQLException ex) {
+					Logger.getLogger(User.class.getName()).log(Level.SEVERE,
+							"Failed to user information for " + uniqueId, ex);
+				} finally {
+					try {
+						if (st != null)
+							st.close();
+					} catch (SQLException ex1) {
+					}
 				}
 			}
 		}
@@ -169,10 +230,12 @@ public class User extends Pluginable {
 				if (result.next()) {
 					this.id = result.getInt("id");
 					this.minLevel = UserLevel.fromInteger(result.getInt("level"));
-					this.username = result.getString("username");
+					this.setUsername(result.getString("username"));
 					this.identified = true;
 					success = true;
 					this.setUniqueId(uniqueId);
+					if (!User.allChannelLevelsLoaded)
+						User.loadChannelLevels(this.id);
 
 					this.getBot().registerPlugins(this);
 					for (Plugin p : this.bot.getPlugins())
@@ -199,7 +262,7 @@ public class User extends Pluginable {
 	 */
 	public void unidentify() {
 		this.identified = false;
-		this.username = null;
+		this.setUsername(null);
 		this.id = 0;
 		this.minLevel = UserLevel.NONE;
 
@@ -314,6 +377,7 @@ public class User extends Pluginable {
 				st.setString(4, this.uniqueId);
 				st.executeUpdate();
 				success = true;
+				User.addLastUniqueId(this.uniqueId);
 				// TODO Fails are handled ugly.
 			} catch (SQLException ex) {
 				Logger.getLogger(User.class.getName()).log(Level.SEVERE,
@@ -400,6 +464,8 @@ public class User extends Pluginable {
 	public boolean setUniqueId(String uniqueId, boolean updateLastUniqueId) {
 		String prevUniqueId = this.uniqueId;
 		this.uniqueId = uniqueId;
+		if (this.bot != null)
+			this.bot.getUserRegistry().updateUniqueId(this, prevUniqueId);
 
 		if (this.isIdentified() && updateLastUniqueId) {
 			User.clearLastUniqueId(uniqueId);
@@ -414,6 +480,7 @@ public class User extends Pluginable {
 				st.setInt(2, this.id);
 				st.executeUpdate();
 
+				User.addLastUniqueId(uniqueId);
 				return true;
 			} catch (SQLException ex) {
 				Logger.getLogger(User.class.getName()).log(Level.SEVERE,
@@ -434,7 +501,8 @@ public class User extends Pluginable {
 	/**
 	 * Clears the given uniqueId from the database. This is useful for some
 	 * operations that set the uniqueId or in cases when the unique ID should
-	 * not be set.
+	 * not be set. The id remains known as a possible last unique id, which
+	 * only costs a query when a user with this id is created.
 	 * 
 	 * @param uniqueId
 	 *            The uniqueId to clear
@@ -463,16 +531,124 @@ public class User extends Pluginable {
 		}
 	}
 
+	/**
+	 * Loads all last known unique ids from the database, so creating a user
+	 * whose unique id isn't one of them doesn't require a query. Should be
+	 * called when the bot starts. When it fails, it is retried by the users
+	 * created after a while.
+	 * 
+	 * @return True if the ids were loaded
+	 */
+	public static boolean loadLastUniqueIds() {
+		synchronized (User.lastUniqueIdsLock) {
+			// Retried later if this fails; succeeding resets the delay
+			User.lastUniqueIdsRetryAt = System.currentTimeMillis() + User.lastUniqueIdsRetryDelay;
+			User.lastUniqueIdsRetryDelay = Math.min(User.lastUniqueIdsRetryDelay * 2, User.LAST_UNIQUE_IDS_RETRY_MAX);
+
+			Statement st = Database.gs();
+			if (st == null)
+				return false;
+
+			try {
+				ResultSet result = st.executeQuery("SELECT last_unique_id FROM users WHERE last_unique_id IS NOT NULL");
+				List<String> ids = new ArrayList<String>();
+				while (result.next())
+					ids.add(result.getString("last_unique_id"));
+
+				// Leave room for the users identifying from now on
+				BloomFilter filter = new BloomFilter(Math.max(ids.size() * 2, 1024), 0.01);
+				for (String id : ids)
+					filter.put(id);
+				User.lastUniqueIds = filter;
+				User.lastUniqueIdsRetryDelay = User.LAST_UNIQUE_IDS_RETRY_MIN;
+				return true;
+			} catch (SQLException ex) {
+				Logger.getLogger(User.class.getName()).log(Level.SEVERE,
+						"Failed to retrieve last unique ids.", ex);
+				return false;
+			} finally {
+				try {
+					if (st != null)
+						st.close();
+				} catch (SQLException ex1) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the filter of all last known unique ids. If they couldn't be
+	 * loaded, loading them is retried, waiting longer after every failure.
+	 * Only a single thread retries; the others go on without the filter.
+	 * 
+	 * @return The filter, or null if the ids have not been loaded
+	 */
+	private static BloomFilter getLastUniqueIds() {
+		BloomFilter filter = User.lastUniqueIds;
+		if (filter != null || System.currentTimeMillis() < User.lastUniqueIdsRetryAt
+				|| !User.lastUniqueIdsRetrying.compareAndSet(false, true))
+			return filter;
+
+		try {
+			if (User.lastUniqueIds == null)
+				User.loadLastUniqueIds();
+		} finally {
+			User.lastUniqueIdsRetrying.set(false);
+		}
+		return User.lastUniqueIds;
+	}
+
+	/**
+	 * Checks whether a user with the given unique id might be identified
+	 * when it is created, because it is the last unique id of a user.
+	 * 
+	 * @param uniqueId
+	 *            The IRC unique identifier
+	 * @return False if the unique id is certainly not a last unique id
+	 */
+	static boolean mightBeIdentified(String uniqueId) {
+		BloomFilter filter = User.getLastUniqueIds();
+		return filter == null || filter.mightContain(uniqueId);
+	}
+
+	/**
+	 * Remembers that the given unique id has been stored as last unique id.
+	 * When the filter of known ids is full, it is loaded again.
+	 */
+	private static void addLastUniqueId(String uniqueId) {
+		if (uniqueId == null)
+			return;
+		synchronized (User.lastUniqueIdsLock) {
+			BloomFilter filter = User.lastUniqueIds;
+			if (filter == null)
+				return;
+			filter.put(uniqueId);
+			if (filter.getInsertions() > filter.getCapacity())
+				User.loadLastUniqueIds();
+		}
+	}
+
 	/**
 	 * Retrieves the current user's nickname, based on its unique identifier
 	 * 
 	 * @return the username or null if not linked to an irc connection
 	 */
 	public String getNickname() {
-		if (this.uniqueId == null)
+		return User.getNickname(this.uniqueId);
+	}
+
+	/**
+	 * Retrieves the nickname part of a unique identifier.
+	 * 
+	 * @param uniqueId
+	 *            The unique identifier, may be null
+	 * @return The nickname, or null if the unique identifier is null
+	 */
+	public static String getNickname(String uniqueId) {
+		if (uniqueId == null)
 			return null;
-		String[] user = this.uniqueId.split("\\!");
-		return user[0];
+		int end = uniqueId.indexOf('!');
+		return end < 0 ? uniqueId : uniqueId.substring(0, end);
 	}
 
 	/**
@@ -489,10 +665,27 @@ public class User extends Pluginable {
 		return this.username;
 	}
 
+	/**
+	 * Changes the username and keeps the user registry of the bot up to date.
+	 * 
+	 * @param username
+	 *            The new username, may be null
+	 */
+	private void setUsername(String username) {
+		String previous = this.username;
+		this.username = username;
+		if (this.bot != null)
+			this.bot.getUserRegistry().updateUsername(this, previous);
+	}
+
 	/**
 	 * Retrieves the user level for this channel. If the user level is unknown
 	 * or lower then the user minimum, the user minimum is returned.
 	 * 
+	 * The channel levels are kept in memory. Normally, they are all loaded
+	 * when the bot starts; otherwise the levels of a user are loaded when they
+	 * are first needed.
+	 * 
 	 * @param channel
 	 *            The channel to retrieve the information for.
 	 * @return The user level for this channel.
@@ -503,22 +696,96 @@ public class User extends Pluginable {
 		if (!this.isIdentified() || channel == null)
 			return level;
 
-		PreparedStatement st = Database.gps("SELECT level FROM channels_users WHERE channel_id = ? AND user_id = ? LIMIT 0,1");
+		if (!User.allChannelLevelsLoaded && !User.channelLevelsLoaded.contains(this.getId())
+				&& !User.loadChannelLevels(this.getId()))
+			return UserLevel.UNKNOWN;
+
+		byte channelLevel = User.channelLevels.get(LongByteHashMap.pack(channel.getId(), this.getId()), User.NO_LEVEL);
+		if (channelLevel != User.NO_LEVEL)
+			level = UserLevel.max(level, UserLevel.fromInteger(channelLevel));
+		return level;
+	}
+
+	/**
+	 * Loads the channel levels of all users with a single query. Should be
+	 * called when the bot starts, before any levels are changed.
+	 * 
+	 * @return True if the levels were loaded
+	 */
+	public static boolean loadChannelLevels() {
+		User.channelLevelsLock.writeLock().lock();
+		try {
+			return User.queryChannelLevels();
+		} finally {
+			User.channelLevelsLock.writeLock().unlock();
+		}
+	}
+
+	private static boolean queryChannelLevels() {
+		Statement st = Database.gs();
 
 		if (st == null)
-			return UserLevel.UNKNOWN;
+			return false;
 
 		try {
-			st.setInt(1, channel.getId());
-			st.setInt(2, this.getId());
-			ResultSet result = st.executeQuery();
-			if (result.next()) {
-				UserLevel channelLevel = UserLevel.fromInteger(result.getInt("level"));
-				level = UserLevel.max(level, channelLevel);
+			ResultSet result = st.executeQuery("SELECT channel_id, user_id, level FROM channels_users");
+			while (result.next())
+				User.channelLevels.put(LongByteHashMap.pack(result.getInt("channel_id"), result.getInt("user_id")),
+						(byte) result.getInt("level"));
+
+			User.allChannelLevelsLoaded = true;
+			return true;
+		} catch (SQLException ex) {
+			Logger.getLogger(User.class.getName()).log(Level.SEVERE,
+					"Failed to retrieve user levels.", ex);
+			return false;
+		} finally {
+			try {
+				if (st != null)
+					st.close();
+			} catch (SQLException ex1) {
 			}
+		}
+	}
+
+	/**
+	 * Loads the channel levels of a single user.
+	 * 
+	 * @param userId
+	 *            The id of the user
+	 * @return True if the levels were loaded
+	 */
+	private static boolean loadChannelLevels(int userId) {
+		User.lockChannelLevels(userId);
+		try {
+			// Another thread may have loaded them while this one was waiting
+			if (User.allChannelLevelsLoaded || User.channelLevelsLoaded.contains(userId))
+				return true;
+			return User.queryChannelLevels(userId);
+		} finally {
+			User.unlockChannelLevels(userId);
+		}
+	}
+
+	private static boolean queryChannelLevels(int userId) {
+		PreparedStatement st = Database.gps("SELECT channel_id, level FROM channels_users WHERE user_id = ?");
+
+		if (st == null)
+			return false;
+
+		try {
+			st.setInt(1, userId);
+			ResultSet result = st.executeQuery();
+			while (result.next())
+				User.channelLevels.put(LongByteHashMap.pack(result.getInt("channel_id"), userId),
+						(byte) result.getInt("level"));
+
+			User.channelLevelsLoaded.add(userId);
+			return true;
 		} catch (SQLException ex) {
 			Logger.getLogger(User.class.getName()).log(Level.SEVERE,
 					"Failed to retrieve user level.", ex);
+			return false;
 		} finally {
 			try {
 				if (st != null)
@@ -526,8 +793,19 @@ public class User extends Pluginable {
 			} catch (SQLException ex1) {
 			}
 		}
-		return level;
+	}
+
+	/**
+	 * Locks the channel levels of a single user.
+	 */
+	private static void lockChannelLevels(int userId) {
+		User.channelLevelsLock.readLock().lock();
+		User.channelLevelLocks[(userId & Integer.MAX_VALUE) % User.CHANNEL_LEVEL_LOCKS].lock();
+	}
 
+	private static void unlockChannelLevels(int userId) {
+		User.channelLevelLocks[(userId & Integer.MAX_VALUE) % User.CHANNEL_LEVEL_LOCKS].unlock();
+		User.channelLevelsLock.readLock().unlock();
 	}
 
 	/**
@@ -578,27 +856,33 @@ public class User extends Pluginable {
 		if (!this.isIdentified())
 			return false;
 
-		PreparedStatement st = Database.gps("REPLACE INTO channels_users SET channel_id = ?, user_id = ?, level = ?");
-		if (st == null)
-			return false;
-
+		User.lockChannelLevels(this.getId());
 		try {
-			st.setInt(1, channel.getId());
-			st.setInt(2, this.getId());
-			st.setInt(3, level.toInteger());
-			st.executeUpdate();
+			PreparedStatement st = Database.gps("REPLACE INTO channels_users SET channel_id = ?, user_id = ?, level = ?");
+			if (st == null)
+				return false;
 
-			return true;
-		} catch (SQLException ex) {
-			Logger.getLogger(User.class.getName()).log(Level.SEVERE,
-					"Failed to update user channel level.", ex);
-			return false;
-		} finally {
 			try {
-				if (st != null)
-					st.close();
-			} catch (SQLException ex1) {
+				st.setInt(1, channel.getId());
+				st.setInt(2, this.getId());
+				st.setInt(3, level.toInteger());
+				st.executeUpdate();
+
+				User.channelLevels.put(LongByteHashMap.pack(channel.getId(), this.getId()), (byte) level.toInteger());
+				return true;
+			} catch (SQLException ex) {
+				Logger.getLogger(User.class.getName()).log(Level.SEVERE,
+						"Failed to update user channel level.", ex);
+				return false;
+			} finally {
+				try {
+					if (st != null)
+						st.close();
+				} catch (SQLException ex1) {
+				}
 			}
+		} finally {
+			User.unlockChannelLevels(this.getId());
 		}
 	}
 
@@ -613,26 +897,32 @@ public class User extends Pluginable {
 		if (!this.isIdentified())
 			return false;
 
-		PreparedStatement st = Database.gps("DELETE FROM channels_users WHERE channel_id = ? AND user_id = ?");
-		if (st == null)
-			return false;
-
+		User.lockChannelLevels(this.getId());
 		try {
-			st.setInt(1, channel.getId());
-			st.setInt(2, this.getId());
-			st.executeUpdate();
+			PreparedStatement st = Database.gps("DELETE FROM channels_users WHERE channel_id = ? AND user_id = ?");
+			if (st == null)
+				return false;
 
-			return true;
-		} catch (SQLException ex) {
-			Logger.getLogger(User.class.getName()).log(Level.SEVERE,
-					"Failed to remove user channel level.", ex);
-			return false;
-		} finally {
 			try {
-				if (st != null)
-					st.close();
-			} catch (SQLException ex1) {
+				st.setInt(1, channel.getId());
+				st.setInt(2, this.getId());
+				st.executeUpdate();
+
+				User.channelLevels.remove(LongByteHashMap.pack(channel.getId(), this.getId()));
+				return true;
+			} catch (SQLException ex) {
+				Logger.getLogger(User.class.getName()).log(Level.SEVERE,
+						"Failed to remove user channel level.", ex);
+				return false;
+			} finally {
+				try {
+					if (st != null)
+						st.close();
+				} catch (SQLException ex1) {
+				}
 			}
+		} finally {
+			User.unlockChannelLevels(this.getId());
 		}
 	}
 
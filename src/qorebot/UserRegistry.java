@@ -0,0 +1,123 @@
+package qorebot;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of all users known to a bot. Users can be looked up by their unique
+ * IRC identifier, their current nickname and, if identified, their username.
+ * 
+ * All lookups are single hash lookups that do not lock. The indices are kept
+ * up to date by {@link User} whenever its unique id or username changes. When
+ * several users share a key (for instance, two hostmasks identified as the same
+ * username), the most recently indexed user is returned.
+ * 
+ * @author Ralph Broenink
+ */
+public class UserRegistry {
+	private final Set<User> users = Collections.newSetFromMap(new ConcurrentHashMap<User, Boolean>());
+	private final ConcurrentMap<String, User> uniqueIds = new ConcurrentHashMap<String, User>();
+	private final ConcurrentMap<String, User> nicknames = new ConcurrentHashMap<String, User>();
+	private final ConcurrentMap<String, User> usernames = new ConcurrentHashMap<String, User>();
+
+	/**
+	 * Retrieves a user by its unique IRC identifier.
+	 * 
+	 * @param uniqueId
+	 *            The unique identifier
+	 * @return The user, or null if not known
+	 */
+	public User getByUniqueId(String uniqueId) {
+		return uniqueId == null ? null : this.uniqueIds.get(uniqueId);
+	}
+
+	/**
+	 * Retrieves a user by its current nickname.
+	 * 
+	 * @param nickname
+	 *            The nickname
+	 * @return The user, or null if not known
+	 */
+	public User getByNickname(String nickname) {
+		return nickname == null ? null : this.nicknames.get(nickname);
+	}
+
+	/**
+	 * Retrieves an identified user by its username.
+	 * 
+	 * @param username
+	 *            The username
+	 * @return The user, or null if no user is identified with this username
+	 */
+	public User getByUsername(String username) {
+		return username == null ? null : this.usernames.get(username);
+	}
+
+	/**
+	 * Retrieves a read-only view of all known users.
+	 */
+	public Set<User> getUsers() {
+		return Collections.unmodifiableSet(this.users);
+	}
+
+	/**
+	 * Adds a user to the registry and indexes all its keys.
+	 * 
+	 * @param user
+	 *            The user to add
+	 */
+	void add(User user) {
+		this.users.add(user);
+		UserRegistry.index(this.uniqueIds, user.getUniqueId(), user);
+		UserRegistry.index(this.nicknames, user.getNickname(), user);
+		UserRegistry.index(this.usernames, user.getUsername(), user);
+	}
+
+	/**
+	 * Reindexes the unique id and nickname of a user. Users that are not part
+	 * of this registry are ignored.
+	 * 
+	 * @param user
+	 *            The user whose unique id has changed
+	 * @param previous
+	 *            The previous unique id of the user, may be null
+	 */
+	void updateUniqueId(User user, String previous) {
+		if (!this.users.contains(user))
+			return;
+		if (previous != null) {
+			UserRegistry.unindex(this.uniqueIds, previous, user);
+			UserRegistry.unindex(this.nicknames, User.getNickname(previous), user);
+		}
+		UserRegistry.index(this.uniqueIds, user.getUniqueId(), user);
+		UserRegistry.index(this.nicknames, user.getNickname(), user);
+	}
+
+	/**
+	 * Reindexes the username of a user. Users that are not part of this
+	 * registry are ignored.
+	 * 
+	 * @param user
+	 *            The user whose username has changed
+	 * @param previous
+	 *            The previous username of the user, may be null
+	 */
+	void updateUsername(User user, String previous) {
+		if (!this.users.contains(user))
+			return;
+		UserRegistry.unindex(this.usernames, previous, user);
+		UserRegistry.index(this.usernames, user.getUsername(), user);
+	}
+
+	private static void index(ConcurrentMap<String, User> map, String key, User user) {
+		if (key != null)
+			map.put(key, user);
+	}
+
+	private static void unindex(ConcurrentMap<String, User> map, String key, User user) {
+		if (key != null)
+			map.remove(key, user);
+	}
+}
@@ -0,0 +1,145 @@
+package qorebot.plugins;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import qorebot.Channel;
+import qorebot.Event;
+import qorebot.EventType;
+
+/**
+ * A FIFO queue of events in which an event of a coalesced type replaces an
+ * event of the same type for the same channel that is still waiting. The older
+ * event is removed and the newer one is added to the end of the queue, so it
+ * is still handled after all events that were queued before it. This is meant
+ * for events that describe the complete state of a channel, like its user
+ * list or topic, of which only the latest one is interesting.
+ * 
+ * @author Ralph Broenink
+ */
+public class CoalescingEventQueue {
+	private final Set<EventType> coalesced;
+	private final Queue<Slot> slots = new ArrayDeque<Slot>();
+	private final Map<Key, Slot> waiting = new HashMap<Key, Slot>();
+	private int size = 0;
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates an empty queue.
+	 * 
+	 * @param coalesced
+	 *            The event types of which a waiting event is replaced by a
+	 *            newer event for the same channel.
+	 */
+	public CoalescingEventQueue(Set<EventType> coalesced) {
+		this.coalesced = coalesced;
+	}
+
+	/**
+	 * Adds an event to the end of the queue, removing the waiting event it
+	 * supersedes.
+	 * 
+	 * @param e
+	 *            The event to add
+	 */
+	public synchronized void offer(Event e) {
+		Key key = null;
+		if (this.coalesced.contains(e.getEvent()) && e.getTarget() instanceof Channel) {
+			key = new Key(e.getEvent(), (Channel) e.getTarget());
+			Slot slot = this.waiting.get(key);
+			if (slot != null) {
+				// Left in the queue, but skipped when taken
+				slot.event = null;
+				this.size--;
+				this.dropped.incrementAndGet();
+			}
+		}
+
+		Slot slot = new Slot(key, e);
+		this.slots.add(slot);
+		this.size++;
+		if (key != null)
+			this.waiting.put(key, slot);
+		this.notifyAll();
+	}
+
+	/**
+	 * Retrieves and removes the first event in the queue, waiting for an event
+	 * to be added if the queue is empty.
+	 * 
+	 * @return The first event
+	 * @throws InterruptedException
+	 *             When interrupted while waiting
+	 */
+	public synchronized Event take() throws InterruptedException {
+		while (this.size == 0)
+			this.wait();
+
+		Slot slot = this.slots.poll();
+		while (slot.event == null)
+			slot = this.slots.poll();
+		if (slot.key != null)
+			this.waiting.remove(slot.key);
+		this.size--;
+		return slot.event;
+	}
+
+	/**
+	 * Retrieves the number of events waiting in this queue.
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Retrieves the number of events that have been replaced by a newer event
+	 * before they were taken from the queue.
+	 */
+	public long getDroppedCount() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * A place in the queue. The event is removed when a newer event replaces
+	 * it.
+	 */
+	private static final class Slot {
+		final Key key;
+		Event event;
+
+		Slot(Key key, Event event) {
+			this.key = key;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * The combination of an event type and a channel, of which only a single
+	 * event may be waiting.
+	 */
+	private static final class Key {
+		private final EventType type;
+		private final Channel channel;
+
+		Key(EventType type, Channel channel) {
+			this.type = type;
+			this.channel = channel;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof Key && ((Key) o).type == this.type && ((Key) o).channel.equals(this.channel));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 5;
+			hash = 17 * hash + this.type.hashCode();
+			hash = 17 * hash + this.channel.hashCode();
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package qorebot.plugins;
+
+import qorebot.Event;
+
+/**
+ * A plugin that handles its events on a pool of threads shared by all ordered
+ * plugins of the bot. Events concerning the same channel (or user, if there's
+ * no channel) are handled in the order they were received, but events for
+ * different channels and users may be handled in parallel. Implementing
+ * classes should therefore be able to handle events concurrently.
+ * 
+ * In contrast to the {@link ThreadedPlugin}, no thread is started for every
+ * plugin.
+ * 
+ * @author Ralph Broenink
+ */
+public abstract class OrderedPlugin extends Plugin {
+
+	/**
+	 * Passes the event to the shared pool of the bot, after any other events
+	 * for the same channel or user that have been passed to this plugin.
+	 * 
+	 * @param e
+	 *            The event to handle.
+	 */
+	@Override
+	protected void dispatch(final Event e) {
+		this.getBot().getPluginExecutor().execute(new LaneKey(this, e.getTarget()), new Runnable() {
+			@Override
+			public void run() {
+				OrderedPlugin.this.handleEvent(e);
+			}
+		});
+	}
+
+	/**
+	 * The key determining the order of events: the combination of a plugin and
+	 * the channel or user the event is about.
+	 */
+	private static final class LaneKey {
+		private final Plugin plugin;
+		private final Object target;
+
+		LaneKey(Plugin plugin, Object target) {
+			this.plugin = plugin;
+			this.target = target;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof LaneKey))
+				return false;
+			LaneKey other = (LaneKey) o;
+			return this.plugin == other.plugin
+					&& (this.target == null ? other.target == null : this.target.equals(other.target));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 7;
+			hash = 31 * hash + System.identityHashCode(this.plugin);
+			hash = 31 * hash + (this.target != null ? this.target.hashCode() : 0);
+			return hash;
+		}
+	}
+}
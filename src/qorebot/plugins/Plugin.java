@@ -289,7 +289,19 @@ public abstract class Plugin {
 	 */
 	public void receive(Event e) {
 		if (this.isImplemented(e.getEvent()))
-			this.handleEvent(e);
+			this.dispatch(e);
+	}
+
+	/**
+	 * Passes an event that is known to be implemented by this plugin to
+	 * handleEvent. Is called by Pluginable objects, which only dispatch events
+	 * to plugins that implement them.
+	 * 
+	 * @param e
+	 *            The event to handle
+	 */
+	protected void dispatch(Event e) {
+		this.handleEvent(e);
 	}
 
 	/**
@@ -1,17 +1,34 @@
 package qorebot.plugins;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import qorebot.Event;
+import qorebot.EventType;
 
 /**
  * Class for all pluginable objects. Pluginable objects should send events using
  * the #update() method. All registered plugins receive this event.
  * 
+ * For every event type, the plugins implementing it are kept in a separate
+ * array, so an event is only passed to plugins that handle it. The plugins and
+ * these arrays form an immutable snapshot, which is replaced atomically
+ * whenever a plugin is registered or unregistered. Events are therefore
+ * dispatched without locking, and never fail because plugins are loaded or
+ * unloaded at the same time.
+ * 
  * @author Ralph Broenink
  */
 public abstract class Pluginable {
-	private Set<Plugin> plugins = new HashSet<Plugin>();
+	private static final Plugin[] NO_PLUGINS = new Plugin[0];
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(NO_PLUGINS));
 
 	/**
 	 * Registers a plugin to this object
@@ -20,7 +37,16 @@ public abstract class Pluginable {
 	 *            The plugin to register
 	 */
 	public void register(Plugin plugin) {
-		this.plugins.add(plugin);
+		while (true) {
+			Snapshot current = this.snapshot.get();
+			if (current.contains(plugin))
+				return;
+
+			Plugin[] plugins = Arrays.copyOf(current.plugins, current.plugins.length + 1);
+			plugins[current.plugins.length] = plugin;
+			if (this.snapshot.compareAndSet(current, new Snapshot(plugins)))
+				return;
+		}
 	}
 
 	/**
@@ -30,14 +56,38 @@ public abstract class Pluginable {
 	 *            The plugin to unregister
 	 */
 	public void unregister(Plugin plugin) {
-		this.plugins.remove(plugin);
+		while (true) {
+			Snapshot current = this.snapshot.get();
+			if (!current.contains(plugin))
+				return;
+
+			List<Plugin> plugins = new ArrayList<Plugin>(current.plugins.length);
+			for (Plugin p : current.plugins)
+				if (!p.equals(plugin))
+					plugins.add(p);
+			if (this.snapshot.compareAndSet(current, new Snapshot(plugins.toArray(new Plugin[plugins.size()]))))
+				return;
+		}
 	}
 
 	/**
-	 * Retrieves the current set of plugins
+	 * Retrieves the current set of plugins. The set is read-only and does not
+	 * change when plugins are registered or unregistered afterwards.
 	 */
 	public Set<Plugin> getPlugins() {
-		return this.plugins;
+		return this.snapshot.get().set;
+	}
+
+	/**
+	 * Retrieves the plugins that implement the given event type.
+	 * 
+	 * @param type
+	 *            The event type
+	 * @return The plugins, which should not be modified
+	 */
+	protected Plugin[] getSubscribers(EventType type) {
+		Plugin[] result = this.snapshot.get().subscribers.get(type);
+		return result == null ? NO_PLUGINS : result;
 	}
 
 	/**
@@ -47,7 +97,36 @@ public abstract class Pluginable {
 	 *            The event to update with.
 	 */
 	protected void update(Event event) {
-		for (Plugin p : this.plugins)
-			p.receive(event);
+		for (Plugin p : this.getSubscribers(event.getEvent()))
+			p.dispatch(event);
+	}
+
+	/**
+	 * Immutable state of the registered plugins.
+	 */
+	private static final class Snapshot {
+		final Plugin[] plugins;
+		final Set<Plugin> set;
+		final Map<EventType, Plugin[]> subscribers;
+
+		Snapshot(Plugin[] plugins) {
+			this.plugins = plugins;
+			this.set = Collections.unmodifiableSet(new LinkedHashSet<Plugin>(Arrays.asList(plugins)));
+
+			this.subscribers = new EnumMap<EventType, Plugin[]>(EventType.class);
+			List<Plugin> implementing = new ArrayList<Plugin>();
+			for (EventType type : EventType.values()) {
+				implementing.clear();
+				for (Plugin p : plugins)
+					if (p.isImplemented(type))
+						implementing.add(p);
+				if (!implementing.isEmpty())
+					this.subscribers.put(type, implementing.toArray(new Plugin[implementing.size()]));
+			}
+		}
+
+		boolean contains(Plugin plugin) {
+			return this.set.contains(plugin);
+		}
 	}
 }
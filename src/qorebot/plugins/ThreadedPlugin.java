@@ -1,18 +1,31 @@
 package qorebot.plugins;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 import qorebot.Event;
+import qorebot.EventType;
 
 /**
  * A plugin that uses a queue to handle all requests to it. When an event is
  * already being handled, any following event will be put in a queue and handled
  * FIFO.
  * 
+ * Every threaded plugin starts its own thread. Plugins that do not need all
+ * their events to be handled on a single thread should use the
+ * {@link OrderedPlugin}, which shares a pool of threads with other plugins.
+ * 
+ * Events that only describe the latest state of a channel (by default its
+ * user list, topic and channel info) are coalesced: when such an event is
+ * still waiting in the queue, a newer one for the same channel replaces it.
+ * 
  * @author Ralph Broenink
  */
 public abstract class ThreadedPlugin extends Plugin implements Runnable {
-	private BlockingQueue<Event> queue = null;
+	private static final Set<EventType> COALESCED_EVENTS = Collections.unmodifiableSet(EnumSet.of(
+			EventType.CHANNEL_ONUSERLIST, EventType.CHANNEL_ONTOPIC, EventType.CHANNEL_ONCHANNELINFO));
+
+	private volatile CoalescingEventQueue queue = null;
 
 	/**
 	 * Receives an Event from a Channel or User. When this is the first event,
@@ -24,15 +37,34 @@ public abstract class ThreadedPlugin extends Plugin implements Runnable {
 	 *            The event to handle.
 	 */
 	@Override
-	public void receive(Event e) {
-		// this.handlePluginEvent(e);
-		if (this.isImplemented(e.getEvent())) {
-			if (this.queue == null) {
-				this.queue = new LinkedBlockingQueue<Event>();
-				new Thread(this).start();
+	protected void dispatch(Event e) {
+		if (this.queue == null) {
+			synchronized (this) {
+				if (this.queue == null) {
+					this.queue = new CoalescingEventQueue(this.getCoalescedEvents());
+					new Thread(this).start();
+				}
 			}
-			this.queue.offer(e);
 		}
+		this.queue.offer(e);
+	}
+
+	/**
+	 * Retrieves the event types of which only the latest waiting event for a
+	 * channel is handled. May be overridden; should always return the same
+	 * set.
+	 */
+	protected Set<EventType> getCoalescedEvents() {
+		return COALESCED_EVENTS;
+	}
+
+	/**
+	 * Retrieves the number of events that were replaced by a newer event for
+	 * the same channel before they were handled.
+	 */
+	public long getDroppedEventCount() {
+		CoalescingEventQueue q = this.queue;
+		return q == null ? 0 : q.getDroppedCount();
 	}
 
 	/**
@@ -0,0 +1,237 @@
+package qorebot.plugins.commands;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import qorebot.Channel;
+import qorebot.User;
+import qorebot.plugins.commands.message.CommandMessage;
+
+/**
+ * A command that handles its messages asynchronously. Instead of a result, it
+ * returns a CompletionStage that completes with the result, which allows the
+ * CommandPlugin to wait for the result without blocking the thread that
+ * received the message.
+ * 
+ * Every message has to be handled within {@link #getTimeout()} milliseconds.
+ * After that, the result completes with a TimeoutException and the work is
+ * cancelled. When the line the message belongs to runs out of time first, the
+ * result completes with a {@link LimitExceededException} instead. Tasks passed
+ * to supplyAsync are part of that line, so their subcommands share its
+ * budget. When the command is used as a subcommand, the result is waited
+ * for, so in contrast to a {@link ThreadedCommand} it can be nested.
+ * 
+ * Like a ThreadedCommand, a command may return a concurrency limit from
+ * {@link #getConcurrency()}. The tasks it passes to
+ * {@link #supplyAsync(User, Callable)} then take turns per user, with at most
+ * that many tasks running at the same time.
+ * 
+ * @author Ralph Broenink
+ */
+public abstract class AsyncCommand extends Command {
+	/** The default time in milliseconds a message should be handled in */
+	public static final long DEFAULT_TIMEOUT = 10000;
+	/** The concurrency of a command that doesn't limit its tasks */
+	public static final int UNLIMITED = 0;
+
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "qorebot-command-timeout");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private volatile FairScheduler scheduler = null;
+
+	/**
+	 * Handles the message asynchronously, if it is handled by this command.
+	 * The result completes with a TimeoutException if it didn't complete in
+	 * time. Cancelling the result cancels the handling of the message.
+	 * 
+	 * @param channel
+	 *            The channel the message was sent to. Might be null.
+	 * @param user
+	 *            The sender of the message
+	 * @param msg
+	 *            The message itself
+	 * @return The result, which completes with null if there is none.
+	 */
+	public CompletableFuture<String> receiveAsync(Channel channel, User user, CommandMessage msg) {
+		if (!this.isHandled(channel, user, msg))
+			return CompletableFuture.completedFuture(null);
+
+		CompletionStage<String> stage;
+		try {
+			stage = this.handleMessageAsync(channel, user, msg);
+		} catch (RuntimeException ex) {
+			CompletableFuture<String> failed = new CompletableFuture<String>();
+			failed.completeExceptionally(ex);
+			return failed;
+		}
+
+		long timeout = this.getTimeout();
+		long remaining = EvaluationContext.getRemainingTime();
+		if (remaining < timeout)
+			return AsyncCommand.withTimeout(stage, remaining, EvaluationContext.timeExceeded());
+		return AsyncCommand.withTimeout(stage, timeout, new TimeoutException("Command did not complete in time."));
+	}
+
+	/**
+	 * Handles the message and waits for the result. Used when the command is
+	 * called synchronously, for instance as a subcommand.
+	 */
+	@Override
+	public String handleMessage(Channel channel, User user, CommandMessage msg) {
+		try {
+			return this.receiveAsync(channel, user, msg).get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof LimitExceededException)
+				throw (LimitExceededException) ex.getCause();
+			Logger.getLogger(AsyncCommand.class.getName()).log(Level.WARNING,
+					"Failed to handle message " + msg + ".", ex.getCause());
+		} catch (CancellationException ex) {
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * Does something with the message, without blocking the calling thread.
+	 * 
+	 * @param channel
+	 *            The channel the message was sent to. Might be null.
+	 * @param user
+	 *            The sender of the message
+	 * @param msg
+	 *            The message itself
+	 * @return The result value, which completes with null if none
+	 */
+	public abstract CompletionStage<String> handleMessageAsync(Channel channel, User user, CommandMessage msg);
+
+	/**
+	 * Returns the time in milliseconds a message should be handled in.
+	 */
+	protected long getTimeout() {
+		return DEFAULT_TIMEOUT;
+	}
+
+	/**
+	 * Returns the maximum number of tasks of this command running at the same
+	 * time, or UNLIMITED. Should always return the same value.
+	 */
+	protected int getConcurrency() {
+		return UNLIMITED;
+	}
+
+	/**
+	 * Runs a task on the executor shared by all concurrent commands. Cancelling
+	 * the result interrupts the task.
+	 * 
+	 * @param task
+	 *            The task computing the result
+	 * @return The result of the task
+	 */
+	protected CompletableFuture<String> supplyAsync(Callable<String> task) {
+		return this.supplyAsync(null, task);
+	}
+
+	/**
+	 * Runs a task for a user on the executor shared by all concurrent
+	 * commands. When the command limits its concurrency, the task is run after
+	 * all earlier tasks of the same user. Cancelling the result interrupts the
+	 * task, or prevents it from running.
+	 * 
+	 * @param user
+	 *            The user the task is for. May be null.
+	 * @param task
+	 *            The task computing the result
+	 * @return The result of the task
+	 */
+	protected CompletableFuture<String> supplyAsync(User user, Callable<String> task) {
+		final Callable<String> bound = EvaluationContext.bind(task);
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+		final FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.complete(bound.call());
+				} catch (Throwable ex) {
+					result.completeExceptionally(ex);
+				}
+			}
+		}, null);
+		result.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String value, Throwable ex) {
+				if (ex instanceof CancellationException)
+					future.cancel(true);
+			}
+		});
+
+		if (this.getConcurrency() > UNLIMITED) {
+			if (this.scheduler == null) {
+				synchronized (this) {
+					if (this.scheduler == null)
+						this.scheduler = new FairScheduler(ThreadedCommand.EXECUTOR, this.getConcurrency());
+				}
+			}
+			this.scheduler.submit(user != null ? user : this, future);
+		} else {
+			ThreadedCommand.EXECUTOR.execute(future);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a future completing like the given stage, or with the given
+	 * exception if the stage didn't complete in time. Cancelling or timing out
+	 * the future cancels the stage.
+	 */
+	private static CompletableFuture<String> withTimeout(CompletionStage<String> stage, long timeout, final Exception timeoutException) {
+		final CompletableFuture<String> source = stage.toCompletableFuture();
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+		source.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String value, Throwable ex) {
+				if (ex == null)
+					result.complete(value);
+				else
+					result.completeExceptionally(ex);
+			}
+		});
+		if (result.isDone())
+			return result;
+
+		final Future<?> timer = AsyncCommand.TIMER.schedule(new Runnable() {
+			@Override
+			public void run() {
+				result.completeExceptionally(timeoutException);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		result.whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String value, Throwable ex) {
+				timer.cancel(false);
+				if (ex != null)
+					source.cancel(true);
+			}
+		});
+		return result;
+	}
+}
@@ -4,7 +4,6 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -31,6 +30,7 @@ public abstract class Command {
 	public static final String PREFIX = "!";
 
 	private Plugin plugin;
+	private CommandHost host;
 	private int id;
 	private boolean autoregisterChannels = false;
 	private boolean autoregisterUsers = false;
@@ -41,8 +41,8 @@ public abstract class Command {
 	 * 
 	 * @param plugin
 	 *            The plugin that is the owner of this Command. Note that this
-	 *            should be a CommandPlugin, as an invocation to parseArguments
-	 *            assumes this is a CommandPlugin.
+	 *            should be a CommandHost, as parseArguments passes subcommands
+	 *            to it.
 	 * @param id
 	 *            The id of the command
 	 * @param name
@@ -54,6 +54,7 @@ public abstract class Command {
 	 */
 	public void init(Plugin plugin, int id, String name, boolean autoregisterChannels, boolean autoregisterUsers) {
 		this.plugin = plugin;
+		this.host = (plugin instanceof CommandHost ? (CommandHost) plugin : null);
 		this.id = id;
 		this.name = name;
 		this.autoregisterChannels = autoregisterChannels;
@@ -115,13 +116,13 @@ public abstract class Command {
 	/**
 	 * Permanently installs the command to a Pluginable object.
 	 * 
-	 * @param plugin
+	 * @param host
 	 *            The plugin to which we should install.
 	 * @param pluginable
 	 *            The object to which to install the command, either a user or a
 	 *            channel.
 	 */
-	public void add(Plugin plugin, Pluginable pluginable) {
+	public void add(CommandHost host, Pluginable pluginable) {
 		// Get the SQL query straight
 		PreparedStatement st = null;
 		int id = 0;
@@ -153,22 +154,16 @@ public abstract class Command {
 			}
 		}
 		// Add to the object
-		try {
-			plugin.getClass()
-				.getMethod("register", Command.class, pluginable.getClass())
-				.invoke(this, pluginable);
-		} catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException | NoSuchMethodException
-				| SecurityException e) {
-			Logger.getLogger(Command.class.getName()).log(Level.SEVERE,
-					"Failed to add the command", e);
-		}
+		if (pluginable instanceof Channel)
+			host.register(this, (Channel) pluginable);
+		else
+			host.register(this, (User) pluginable);
 	}
 
 	/**
 	 * Installs the Command with the given name into the bot.
 	 * 
-	 * @param plugin
+	 * @param host
 	 *            The CommandPlugin that owns the command.
 	 * @param name
 	 *            The name of the command to install.
@@ -180,67 +175,54 @@ public abstract class Command {
 	 *            user.
 	 * @return True iff the installation succeeded.
 	 */
-	public static boolean install(Plugin plugin, String name, boolean autoregisterChannels, boolean autoregisterUsers) {
+	public static boolean install(CommandHost host, String name, boolean autoregisterChannels, boolean autoregisterUsers) {
+		// Load plugin and check if it exists.
+		Command command = host.createCommand(name);
+		if (command == null) {
+			Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE,
+					"Could not load and thus not install the command " + name);
+			return false;
+		}
+		
+		// Insert the plugin to the plugins table
+		PreparedStatement st = Database.gps("INSERT INTO commands(name, autoregister_channels, autoregister_users) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS);
+		if (st == null)
+			return false;
+		
+		ResultSet keys = null;
+		int id = 0;
+		
 		try {
-			// Load plugin and check if it exists.
-			Command command = (Command) plugin.getClass().getMethod("createCommand", String.class).invoke(plugin, name);
-			if (command == null) {
-				Logger.getLogger(Plugin.class.getName()).log(Level.SEVERE,
-						"Could not load and thus not install the command " + name);
-				return false;
-			}
-			
-			// Insert the plugin to the plugins table
-			PreparedStatement st = Database.gps("INSERT INTO commands(name, autoregister_channels, autoregister_users) VALUES(?,?,?)", Statement.RETURN_GENERATED_KEYS);
-			if (st == null)
-				return false;
-			
-			ResultSet keys = null;
-			int id = 0;
-			
-			try {
-				st.setString(1, name);
-				st.setBoolean(2, autoregisterChannels);
-				st.setBoolean(3, autoregisterUsers);
-				st.executeUpdate();
-				
-				keys = st.getGeneratedKeys();
-				keys.next();
-				id = keys.getInt(1);
-			} catch (SQLException ex) {
-				Logger.getLogger(Command.class.getName()).log(Level.SEVERE,
-						"Failed to install the command", ex);
-				return false;
-			} finally {
-				try {
-					if (keys != null)
-						keys.close();
-				} catch (SQLException ex1) {
-				}
-				try {
-					if (st != null)
-						st.close();
-				} catch (SQLException ex1) {
-				}
-			}
-	
-			// Call the installation handler of this plugin
-			command.handleInstalled();
-			
-			// Update the bot with the new information
-			plugin.getClass()
-					.getMethod("initCommand", Command.class, int.class,
-							String.class, boolean.class, boolean.class)
-					.invoke(plugin, command, id, name, autoregisterChannels,
-							autoregisterUsers);
+			st.setString(1, name);
+			st.setBoolean(2, autoregisterChannels);
+			st.setBoolean(3, autoregisterUsers);
+			st.executeUpdate();
 			
-		} catch (IllegalAccessException | IllegalArgumentException
-				| InvocationTargetException | NoSuchMethodException
-				| SecurityException e) {
+			keys = st.getGeneratedKeys();
+			keys.next();
+			id = keys.getInt(1);
+		} catch (SQLException ex) {
 			Logger.getLogger(Command.class.getName()).log(Level.SEVERE,
-					"Failed to install the command", e);
+					"Failed to install the command", ex);
 			return false;
+		} finally {
+			try {
+				if (keys != null)
+					keys.close();
+			} catch (SQLException ex1) {
+			}
+			try {
+				if (st != null)
+					st.close();
+			} catch (SQLException ex1) {
+			}
 		}
+
+		// Call the installation handler of this plugin
+		command.handleInstalled();
+		
+		// Update the bot with the new information
+		host.initCommand(command, id, name, autoregisterChannels, autoregisterUsers);
 		
 		return true;
 	}
@@ -270,6 +252,14 @@ public abstract class Command {
 		return this.plugin;
 	}
 
+	/**
+	 * Returns the plugin this command is loaded for as a CommandHost, or null
+	 * if that plugin isn't a CommandHost.
+	 */
+	public final CommandHost getHost() {
+		return this.host;
+	}
+
 	/**
 	 * Returns the id of the command.
 	 */
@@ -342,6 +332,17 @@ public abstract class Command {
 	 */
 	public abstract List<String> supportedCommands();
 	
+	/**
+	 * Retrieves the words (without prefix) of which a message should start to
+	 * be passed to this command. Defaults to the list of supported commands;
+	 * commands that handle other words than the ones they support should
+	 * override this. When null is returned, every message is passed to this
+	 * command.
+	 */
+	public List<String> getTriggers() {
+		return this.supportedCommands();
+	}
+	
 	/**
 	 * Retrieves the list of commands that are supported by this handler and 
 	 * that should be displayed in the list of all commands. Defaults to the
@@ -350,6 +351,27 @@ public abstract class Command {
 	public List<String> listedCommands(Channel channel, User user) {
 		return this.supportedCommands();
 	}
+
+	/**
+	 * Returns true if the given message is parsed by this command. The Command
+	 * superclasses don't handle a message for which this returns false.
+	 * Defaults to checking whether the message is one of the supported
+	 * commands.
+	 * 
+	 * @param channel
+	 *            The channel the message was received on. May be null.
+	 * @param user
+	 *            The user who sent the message. May not be null.
+	 * @param msg
+	 *            The sent message. May not be null.
+	 * @return True if the given message should be parsed by this command
+	 */
+	public boolean isHandled(Channel channel, User user, CommandMessage msg) {
+		for (String c : this.supportedCommands())
+			if (msg.isCommand(c))
+				return true;
+		return false;
+	}
 	
 	
 	// -------------------------------------------------------------------------
@@ -361,11 +383,12 @@ public abstract class Command {
 	 * list of strings. As commands may return null, the returned list may
 	 * contain null values.
 	 * 
-	 * Since the Command is unable to get access to the owning plugin since this
-	 * is a plugin loaded by the PluginLoader,
-	 * {@link plugins.CommandPlugin#parseMessage(qorebot.Channel, qorebot.User, qorebot.plugins.commands.message.CommandMessage)}
-	 * is executed directly on {@link #getPlugin()}. This may cause weird
-	 * problems, but is the only way to perform the action.
+	 * Subcommands are passed to
+	 * {@link CommandHost#parseMessage(qorebot.Channel, qorebot.User, qorebot.plugins.commands.message.CommandMessage)}
+	 * of {@link #getHost()}. Sibling subcommands are evaluated in parallel, but
+	 * their results keep their order. A LimitExceededException is thrown when
+	 * the line uses too many subcommands or has run out of time; see
+	 * {@link CommandLimits}.
 	 * 
 	 * @param channel
 	 *            The channel the CommandMessage was sent through
@@ -376,34 +399,33 @@ public abstract class Command {
 	 * @return A list of Strings containing the results of all commandmessages.
 	 */
 	public List<String> parseArguments(Channel channel, User user, CommandMessage msg) {
-		ArrayList<String> result = new ArrayList<String>();
-		for (Message m : msg.getMessages()) {
-			if (m instanceof StringMessage) {
-				result.add(((StringMessage) m).getMessage());
+		CommandLimits.checkTime();
+		List<Message> messages = msg.getMessages();
+		List<CommandMessage> subcommands = new ArrayList<CommandMessage>();
+		for (Message m : messages)
+			if (m instanceof CommandMessage)
+				subcommands.add((CommandMessage) m);
+
+		List<String> results = null;
+		if (!subcommands.isEmpty()) {
+			if (this.host != null) {
+				results = EvaluationContext.evaluate(this.host, channel, user, subcommands);
 			} else {
-				String res = null;
-				try {
-					// since we can't retrieve the CommandPlugin (due to layer
-					// separation)
-					// we should call parseMessage this weird way.
-					Object o = this.plugin.getClass().getMethod("parseMessage", Channel.class, User.class, CommandMessage.class)
-							.invoke(this.plugin, channel, user, m);
-					if (o != null)
-						res = (String) o;
-				} catch (NoSuchMethodException ex) {
-					Logger.getLogger(Command.class.getName()).log(Level.SEVERE, null, ex);
-				} catch (SecurityException ex) {
-					Logger.getLogger(Command.class.getName()).log(Level.SEVERE, null, ex);
-				} catch (IllegalAccessException ex) {
-					Logger.getLogger(Command.class.getName()).log(Level.SEVERE, null, ex);
-				} catch (IllegalArgumentException ex) {
-					Logger.getLogger(Command.class.getName()).log(Level.SEVERE, null, ex);
-				} catch (InvocationTargetException ex) {
-					Logger.getLogger(Command.class.getName()).log(Level.SEVERE, null, ex);
-				}
-				result.add(res);
+				Logger.getLogger(Command.class.getName()).log(Level.SEVERE,
+						"Could not parse a subcommand, as command {0} has no CommandHost.", this.name);
 			}
 		}
+
+		ArrayList<String> result = new ArrayList<String>(messages.size());
+		int i = 0;
+		for (Message m : messages) {
+			if (m instanceof StringMessage)
+				result.add(((StringMessage) m).getMessage());
+			else if (m instanceof CommandMessage)
+				result.add(results == null ? null : results.get(i++));
+			else
+				result.add(null);
+		}
 		return result;
 	}
 
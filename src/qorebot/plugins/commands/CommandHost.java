@@ -0,0 +1,155 @@
+package qorebot.plugins.commands;
+
+import java.util.Set;
+
+import qorebot.Channel;
+import qorebot.User;
+import qorebot.plugins.commands.message.CommandMessage;
+
+/**
+ * The plugin that owns and runs commands, as seen by the commands themselves.
+ * 
+ * Commands and the plugin owning them are loaded by their own PluginLoader, so
+ * a command can't refer to the class of that plugin directly. This interface is
+ * loaded by the parent loader and therefore shared by both, allowing commands
+ * to call their owner without reflection.
+ * 
+ * @author Ralph Broenink
+ */
+public interface CommandHost {
+
+	/**
+	 * Parses the message by passing it to all commands for the channel (if not
+	 * null) or the user (if channel is null).
+	 * 
+	 * @param channel
+	 *            The channel the message came through. May be null.
+	 * @param sender
+	 *            The sender of the message.
+	 * @param message
+	 *            The message.
+	 * @return The first result of any command, or null if none.
+	 */
+	String parseMessage(Channel channel, User sender, CommandMessage message);
+
+	/**
+	 * Creates a command based on its name.
+	 * 
+	 * @param name
+	 *            A name starting with plugins. or file:
+	 * @return An instance of the Command, or null if it could not be created.
+	 */
+	Command createCommand(String name);
+
+	/**
+	 * Initializes a command and registers it with all channels and users it
+	 * should be registered with.
+	 * 
+	 * @param command
+	 *            The command
+	 * @param id
+	 *            The id
+	 * @param name
+	 *            The plugin name
+	 * @param autoregisterChannels
+	 *            True when the command should autoregister with new channels
+	 * @param autoregisterUsers
+	 *            True when the command should autoregister with new users
+	 */
+	void initCommand(Command command, int id, String name, boolean autoregisterChannels, boolean autoregisterUsers);
+
+	/**
+	 * Reloads a command.
+	 * 
+	 * @param c
+	 *            The command to reload
+	 */
+	void reloadCommand(Command c);
+
+	/**
+	 * Registers a command to an user
+	 * 
+	 * @param command
+	 *            The command to register
+	 * @param user
+	 *            The user to register with
+	 */
+	void register(Command command, User user);
+
+	/**
+	 * Registers a command to a channel
+	 * 
+	 * @param command
+	 *            The command to register
+	 * @param channel
+	 *            The channel to register with
+	 */
+	void register(Command command, Channel channel);
+
+	/**
+	 * Registers a command to this object
+	 * 
+	 * @param command
+	 *            The command to register
+	 */
+	void register(Command command);
+
+	/**
+	 * Unregisters a command from a user
+	 * 
+	 * @param command
+	 *            The command to unregister
+	 * @param user
+	 *            The user to unregister from
+	 */
+	void unregister(Command command, User user);
+
+	/**
+	 * Unregisters a command from a channel
+	 * 
+	 * @param command
+	 *            The command to unregister
+	 * @param channel
+	 *            The channel to unregister from
+	 */
+	void unregister(Command command, Channel channel);
+
+	/**
+	 * Unregisters a command from this object
+	 * 
+	 * @param command
+	 *            The command to unregister
+	 */
+	void unregister(Command command);
+
+	/**
+	 * Retrieves the Command for a given command name. Returns null if not found
+	 * 
+	 * @param command
+	 *            The command name
+	 */
+	Command getCommand(String command);
+
+	/**
+	 * Retrieves the current set of commands
+	 */
+	Set<Command> getCommands();
+
+	/**
+	 * Retrieves the set of commands loaded for the given user, or null if
+	 * there are none.
+	 * 
+	 * @param user
+	 *            The user to retrieve a set of commands from
+	 */
+	Set<Command> getCommands(User user);
+
+	/**
+	 * Retrieves the set of commands loaded for the given channel, or null if
+	 * there are none.
+	 * 
+	 * @param channel
+	 *            The channel to retrieve a set of commands from
+	 */
+	Set<Command> getCommands(Channel channel);
+}
@@ -0,0 +1,163 @@
+package qorebot.plugins.commands;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import qorebot.Config;
+
+/**
+ * The budgets of a single command line, limiting the cost of parsing and
+ * evaluating it. Once {@link #configure()} has been called, the budgets are
+ * read from the configuration file, and read again when it changes. Until
+ * then, the defaults apply:
+ * 
+ * COMMAND_MAX_DEPTH        The maximum nesting depth of subcommands (8)
+ * COMMAND_MAX_TOKENS       The maximum number of words, strings and
+ *                          subcommands in a line (256)
+ * COMMAND_MAX_SUBCOMMANDS  The maximum number of subcommands evaluated (32)
+ * COMMAND_LINE_TIMEOUT     The time in milliseconds all subcommands of a line
+ *                          should be evaluated in (10000)
+ * 
+ * A line exceeding a budget is rejected with a {@link LimitExceededException}.
+ * The number of rejections is counted for every budget.
+ * 
+ * The time of a line counts from {@link #startLine()}, which should be called
+ * when the line is received. Parsing and evaluating the line check the time
+ * with {@link #checkTime()}.
+ * 
+ * @author Ralph Broenink
+ */
+public final class CommandLimits {
+	/** The budgets of a command line */
+	public enum Limit {
+		DEPTH, TOKENS, SUBCOMMANDS, TIME
+	}
+
+	/** The maximum nesting depth if none is configured */
+	public static final int DEFAULT_MAX_DEPTH = 8;
+	/** The maximum number of tokens if none is configured */
+	public static final int DEFAULT_MAX_TOKENS = 256;
+	/** The maximum number of subcommands if none is configured */
+	public static final int DEFAULT_MAX_SUBCOMMANDS = 32;
+	/** The line timeout in milliseconds if none is configured */
+	public static final int DEFAULT_LINE_TIMEOUT = 10000;
+
+	private static volatile int maxDepth = CommandLimits.DEFAULT_MAX_DEPTH;
+	private static volatile int maxTokens = CommandLimits.DEFAULT_MAX_TOKENS;
+	private static volatile int maxSubcommands = CommandLimits.DEFAULT_MAX_SUBCOMMANDS;
+	private static volatile long lineTimeout = CommandLimits.DEFAULT_LINE_TIMEOUT;
+
+	private static final Map<Limit, AtomicLong> REJECTED = CommandLimits.createCounters();
+	private static final AtomicBoolean configured = new AtomicBoolean(false);
+
+	private CommandLimits() {
+	}
+
+	/**
+	 * Reads the budgets from the configuration file, now and whenever it
+	 * changes. Only the first call has any effect.
+	 */
+	public static void configure() {
+		if (!CommandLimits.configured.compareAndSet(false, true))
+			return;
+		CommandLimits.load();
+		Config.addListener(new Config.Listener() {
+			@Override
+			public void configurationChanged() {
+				CommandLimits.load();
+			}
+		});
+	}
+
+	/**
+	 * Returns the maximum nesting depth of subcommands.
+	 */
+	public static int getMaxDepth() {
+		return CommandLimits.maxDepth;
+	}
+
+	/**
+	 * Returns the maximum number of words, strings and subcommands in a line.
+	 */
+	public static int getMaxTokens() {
+		return CommandLimits.maxTokens;
+	}
+
+	/**
+	 * Returns the maximum number of subcommands evaluated for a line.
+	 */
+	public static int getMaxSubcommands() {
+		return CommandLimits.maxSubcommands;
+	}
+
+	/**
+	 * Returns the time in milliseconds all subcommands of a line should be
+	 * evaluated in.
+	 */
+	public static long getLineTimeout() {
+		return CommandLimits.lineTimeout;
+	}
+
+	/**
+	 * Starts the budget of a line received on this thread. Subcommands and
+	 * asynchronous commands of the line share it, even on other threads.
+	 * 
+	 * @return True if a line was started, in which case {@link #endLine()}
+	 *         should be called when it has been evaluated. False if this
+	 *         thread is already evaluating a line.
+	 */
+	public static boolean startLine() {
+		return EvaluationContext.start();
+	}
+
+	/**
+	 * Ends the line started on this thread with {@link #startLine()}.
+	 */
+	public static void endLine() {
+		EvaluationContext.end();
+	}
+
+	/**
+	 * Throws a LimitExceededException if the line being parsed or evaluated
+	 * on this thread has run out of time. Does nothing outside a line.
+	 */
+	public static void checkTime() {
+		EvaluationContext.checkTime();
+	}
+
+	/**
+	 * Counts a line that was rejected.
+	 * 
+	 * @param ex
+	 *            The reason the line was rejected
+	 */
+	public static void rejected(LimitExceededException ex) {
+		CommandLimits.REJECTED.get(ex.getLimit()).incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of lines rejected for exceeding the given budget.
+	 * 
+	 * @param limit
+	 *            The budget
+	 */
+	public static long getRejectedCount(Limit limit) {
+		return CommandLimits.REJECTED.get(limit).get();
+	}
+
+	private static void load() {
+		CommandLimits.maxDepth = Config.getInt("COMMAND_MAX_DEPTH", CommandLimits.DEFAULT_MAX_DEPTH);
+		CommandLimits.maxTokens = Config.getInt("COMMAND_MAX_TOKENS", CommandLimits.DEFAULT_MAX_TOKENS);
+		CommandLimits.maxSubcommands = Config.getInt("COMMAND_MAX_SUBCOMMANDS", CommandLimits.DEFAULT_MAX_SUBCOMMANDS);
+		CommandLimits.lineTimeout = Config.getInt("COMMAND_LINE_TIMEOUT", CommandLimits.DEFAULT_LINE_TIMEOUT);
+	}
+
+	private static Map<Limit, AtomicLong> createCounters() {
+		Map<Limit, AtomicLong> counters = new EnumMap<Limit, AtomicLong>(Limit.class);
+		for (Limit limit : Limit.values())
+			counters.put(limit, new AtomicLong());
+		return counters;
+	}
+}
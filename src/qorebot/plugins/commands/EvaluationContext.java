@@ -0,0 +1,375 @@
+package qorebot.plugins.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import qorebot.Channel;
+import qorebot.User;
+import qorebot.plugins.commands.message.CommandMessage;
+import qorebot.plugins.commands.message.Message;
+import qorebot.plugins.commands.message.StringMessage;
+
+/**
+ * The evaluation of the subcommands of a single command line. Sibling
+ * subcommands are evaluated in parallel on a small shared pool, while their
+ * results are returned in order. All subcommands of the line share a deadline,
+ * and a subcommand that occurs more than once in the line is only evaluated
+ * once.
+ * 
+ * The context of the line being evaluated is kept in a thread local, which is
+ * also set while a subcommand is evaluated on the pool or a task of an
+ * {@link AsyncCommand} runs, so subcommands of subcommands belong to the same
+ * line. A line starts when it is received, see {@link #start()}, or otherwise
+ * when its first subcommands are evaluated.
+ * 
+ * Every subcommand is handed to the pool, but a thread waiting for a
+ * subcommand that no pool thread has started yet evaluates it itself.
+ * Therefore, a full pool never causes subcommands to wait for each other
+ * forever. Such a subcommand is interrupted at the deadline, just like a
+ * subcommand evaluated on the pool.
+ * 
+ * The number of subcommands evaluated for a line and the time they take are
+ * limited by {@link CommandLimits}. When a limit is exceeded, a
+ * {@link LimitExceededException} is thrown to the command evaluating the line.
+ * 
+ * @author Ralph Broenink
+ */
+final class EvaluationContext {
+	/** The number of threads evaluating subcommands */
+	public static final int THREADS = 8;
+	/** The number of subcommands that may wait for a thread */
+	public static final int CAPACITY = 64;
+
+	private static final ThreadLocal<EvaluationContext> CURRENT = new ThreadLocal<EvaluationContext>();
+	private static final ThreadPoolExecutor POOL = EvaluationContext.createPool();
+	private static final ScheduledThreadPoolExecutor TIMER = EvaluationContext.createTimer();
+
+	/**
+	 * A subcommand that is evaluated at most once, by the first thread that
+	 * starts it.
+	 */
+	private static class Subcommand extends FutureTask<String> {
+		private final AtomicBoolean started = new AtomicBoolean();
+
+		Subcommand(Callable<String> callable) {
+			super(callable);
+		}
+
+		@Override
+		public void run() {
+			this.start();
+		}
+
+		/**
+		 * Evaluates the subcommand if no thread has started it yet.
+		 * 
+		 * @return True if the subcommand was evaluated by this thread
+		 */
+		boolean start() {
+			if (!this.started.compareAndSet(false, true))
+				return false;
+			super.run();
+			return true;
+		}
+
+		boolean isStarted() {
+			return this.started.get();
+		}
+	}
+
+	private final long deadline;
+	private final ConcurrentMap<String, Subcommand> results = new ConcurrentHashMap<String, Subcommand>();
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private EvaluationContext(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Starts a new line on this thread, unless a line is already being
+	 * evaluated.
+	 * 
+	 * @return True if a line was started, in which case {@link #end()} should
+	 *         be called when it has been evaluated
+	 */
+	static boolean start() {
+		if (EvaluationContext.CURRENT.get() != null)
+			return false;
+		EvaluationContext.CURRENT.set(new EvaluationContext(System.currentTimeMillis() + CommandLimits.getLineTimeout()));
+		return true;
+	}
+
+	/**
+	 * Ends the line started on this thread.
+	 */
+	static void end() {
+		EvaluationContext.CURRENT.remove();
+	}
+
+	/**
+	 * Throws a LimitExceededException if the line being evaluated on this
+	 * thread has run out of time.
+	 */
+	static void checkTime() {
+		EvaluationContext context = EvaluationContext.CURRENT.get();
+		if (context != null && System.currentTimeMillis() >= context.deadline)
+			throw EvaluationContext.timeExceeded();
+	}
+
+	/**
+	 * Returns the time in milliseconds left for the line being evaluated on
+	 * this thread, or Long.MAX_VALUE if there is none.
+	 */
+	static long getRemainingTime() {
+		EvaluationContext context = EvaluationContext.CURRENT.get();
+		if (context == null)
+			return Long.MAX_VALUE;
+		return Math.max(context.deadline - System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * Returns a task that runs the given task as part of the line being
+	 * evaluated on this thread, if any.
+	 * 
+	 * @param task
+	 *            The task to run on another thread
+	 */
+	static <T> Callable<T> bind(final Callable<T> task) {
+		final EvaluationContext context = EvaluationContext.CURRENT.get();
+		if (context == null)
+			return task;
+
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				EvaluationContext previous = EvaluationContext.CURRENT.get();
+				EvaluationContext.CURRENT.set(context);
+				try {
+					return task.call();
+				} finally {
+					EvaluationContext.CURRENT.set(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Creates the exception thrown when a line has run out of time.
+	 */
+	static LimitExceededException timeExceeded() {
+		return new LimitExceededException(CommandLimits.Limit.TIME,
+				"Subcommands may not take more than " + CommandLimits.getLineTimeout() + " ms.");
+	}
+
+	/**
+	 * Evaluates the given subcommands as part of the line currently being
+	 * evaluated, or as a new line if there is none.
+	 * 
+	 * @param host
+	 *            The host to pass the subcommands to
+	 * @param channel
+	 *            The channel the line was sent through
+	 * @param user
+	 *            The sender of the line
+	 * @param messages
+	 *            The subcommands to evaluate
+	 * @return The results of the subcommands, in the same order. The result of
+	 *         a subcommand that failed is null.
+	 * @throws LimitExceededException
+	 *             When the line exceeds its budget of subcommands or time
+	 */
+	static List<String> evaluate(CommandHost host, Channel channel, User user, List<CommandMessage> messages) {
+		EvaluationContext context = EvaluationContext.CURRENT.get();
+		if (context != null)
+			return context.evaluateAll(host, channel, user, messages);
+
+		context = new EvaluationContext(System.currentTimeMillis() + CommandLimits.getLineTimeout());
+		EvaluationContext.CURRENT.set(context);
+		try {
+			return context.evaluateAll(host, channel, user, messages);
+		} finally {
+			EvaluationContext.CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Returns a string that is equal for two subcommands only if they consist
+	 * of the same messages. Unlike toString(), the strings are escaped, so a
+	 * string containing quotes can't be mistaken for several strings.
+	 */
+	private static String key(CommandMessage message) {
+		StringBuilder sb = new StringBuilder();
+		EvaluationContext.appendKey(sb, message);
+		return sb.toString();
+	}
+
+	private static void appendKey(StringBuilder sb, Message message) {
+		if (message instanceof CommandMessage) {
+			sb.append('{');
+			for (Message m : ((CommandMessage) message).getMessages()) {
+				sb.append(' ');
+				EvaluationContext.appendKey(sb, m);
+			}
+			sb.append(" }");
+		} else {
+			String s = ((StringMessage) message).getMessage();
+			sb.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\')
+					sb.append('\\');
+				sb.append(c);
+			}
+			sb.append('"');
+		}
+	}
+
+	private List<String> evaluateAll(CommandHost host, Channel channel, User user, List<CommandMessage> messages) {
+		if (System.currentTimeMillis() >= this.deadline)
+			throw EvaluationContext.timeExceeded();
+		if (this.calls.addAndGet(messages.size()) > CommandLimits.getMaxSubcommands())
+			throw new LimitExceededException(CommandLimits.Limit.SUBCOMMANDS,
+					"A command may not use more than " + CommandLimits.getMaxSubcommands() + " subcommands.");
+
+		List<Subcommand> tasks = new ArrayList<Subcommand>(messages.size());
+		for (CommandMessage m : messages) {
+			String key = EvaluationContext.key(m);
+			Subcommand task = this.results.get(key);
+			if (task == null) {
+				Subcommand created = this.createTask(host, channel, user, m);
+				task = this.results.putIfAbsent(key, created);
+				if (task == null) {
+					task = created;
+					EvaluationContext.POOL.execute(task);
+				}
+			}
+			tasks.add(task);
+		}
+
+		List<String> result = new ArrayList<String>(tasks.size());
+		try {
+			for (int i = 0; i < tasks.size(); i++)
+				result.add(this.await(tasks.get(i), messages.get(i)));
+		} catch (LimitExceededException ex) {
+			// The line is rejected, so the other subcommands are of no use
+			for (Subcommand task : tasks)
+				task.cancel(true);
+			throw ex;
+		}
+		return result;
+	}
+
+	private Subcommand createTask(final CommandHost host, final Channel channel, final User user, final CommandMessage m) {
+		return new Subcommand(new Callable<String>() {
+			@Override
+			public String call() {
+				EvaluationContext previous = EvaluationContext.CURRENT.get();
+				EvaluationContext.CURRENT.set(EvaluationContext.this);
+				try {
+					return host.parseMessage(channel, user, m);
+				} finally {
+					EvaluationContext.CURRENT.set(previous);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the result of a subcommand, evaluating it on this thread if it
+	 * hasn't been started yet. The evaluation on this thread is interrupted at
+	 * the deadline.
+	 */
+	private String await(final Subcommand task, CommandMessage m) {
+		long remaining = this.deadline - System.currentTimeMillis();
+		if (remaining > 0 && !task.isStarted()) {
+			ScheduledFuture<?> timer = EvaluationContext.TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					task.cancel(true);
+				}
+			}, remaining, TimeUnit.MILLISECONDS);
+			try {
+				// Cancelling the task interrupted this thread, which is of no
+				// concern to the caller
+				if (task.start() && task.isCancelled())
+					Thread.interrupted();
+			} finally {
+				timer.cancel(false);
+			}
+		}
+
+		try {
+			remaining = this.deadline - System.currentTimeMillis();
+			return task.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			task.cancel(true);
+			throw EvaluationContext.timeExceeded();
+		} catch (ExecutionException ex) {
+			// Let the line fail as a whole if a subcommand exceeded a budget
+			if (ex.getCause() instanceof LimitExceededException)
+				throw (LimitExceededException) ex.getCause();
+			Logger.getLogger(EvaluationContext.class.getName()).log(Level.SEVERE,
+					"Subcommand " + m + " failed.", ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (CancellationException ex) {
+			// A duplicate of this subcommand elsewhere in the line ran out of time
+			throw EvaluationContext.timeExceeded();
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the pool evaluating subcommands. Subcommands that do not fit in
+	 * the pool are discarded, and evaluated by the thread waiting for them.
+	 */
+	private static ThreadPoolExecutor createPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(EvaluationContext.THREADS, EvaluationContext.THREADS,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(EvaluationContext.CAPACITY),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "qorebot-subcommand-" + this.count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Creates the timer interrupting subcommands evaluated by a waiting thread.
+	 */
+	private static ScheduledThreadPoolExecutor createTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "qorebot-subcommand-timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+}
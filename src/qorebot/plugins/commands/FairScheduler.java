@@ -0,0 +1,112 @@
+package qorebot.plugins.commands;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules tasks of several users on an executor. At most a fixed number of
+ * tasks run at the same time, and every user has at most one task running.
+ * Users with waiting tasks take turns, so a user sending many messages does not
+ * delay other users.
+ * 
+ * @author Ralph Broenink
+ */
+class FairScheduler {
+	private final Executor executor;
+	private final int limit;
+
+	private final Map<Object, Deque<Runnable>> pending = new HashMap<Object, Deque<Runnable>>();
+	private final Queue<Object> ready = new ArrayDeque<Object>();
+	private final Set<Object> running = new HashSet<Object>();
+
+	/**
+	 * Creates the scheduler.
+	 * 
+	 * @param executor
+	 *            The executor to run the tasks on
+	 * @param limit
+	 *            The maximum number of tasks running at the same time
+	 */
+	FairScheduler(Executor executor, int limit) {
+		this.executor = executor;
+		this.limit = limit;
+	}
+
+	/**
+	 * Schedules a task after all earlier tasks of the same user.
+	 * 
+	 * @param user
+	 *            The key of the user the task is for
+	 * @param task
+	 *            The task to run
+	 */
+	synchronized void submit(Object user, Runnable task) {
+		Deque<Runnable> tasks = this.pending.get(user);
+		if (tasks == null) {
+			tasks = new ArrayDeque<Runnable>();
+			this.pending.put(user, tasks);
+			if (!this.running.contains(user))
+				this.ready.add(user);
+		}
+		tasks.add(task);
+		this.startTasks();
+	}
+
+	/**
+	 * Starts tasks of waiting users until the limit has been reached. Should
+	 * only be called while holding the lock on this object.
+	 */
+	private void startTasks() {
+		while (this.running.size() < this.limit && !this.ready.isEmpty()) {
+			final Object user = this.ready.poll();
+			Deque<Runnable> tasks = this.pending.get(user);
+			final Runnable task = tasks.poll();
+			if (tasks.isEmpty())
+				this.pending.remove(user);
+
+			this.running.add(user);
+			try {
+				this.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							task.run();
+						} finally {
+							FairScheduler.this.finished(user);
+						}
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				Logger.getLogger(FairScheduler.class.getName()).log(Level.SEVERE,
+						"Could not start task.", ex);
+				this.running.remove(user);
+				if (this.pending.containsKey(user))
+					this.ready.add(user);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called when a task of a user has finished. The user takes its place at
+	 * the end of the line if it has more tasks waiting.
+	 * 
+	 * @param user
+	 *            The key of the user
+	 */
+	private synchronized void finished(Object user) {
+		this.running.remove(user);
+		if (this.pending.containsKey(user))
+			this.ready.add(user);
+		this.startTasks();
+	}
+}
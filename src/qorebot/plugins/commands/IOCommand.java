@@ -43,23 +43,4 @@ public abstract class IOCommand extends Command {
 	 */
 	public abstract String handleMessage(Channel channel, User user, List<String> msg);
 
-	/**
-	 * Returns true if the given message is parsed by this command. If this
-	 * returns false, handleMessage won't be executed.
-	 * 
-	 * @param channel
-	 *            The channel the message was received on. May be null.
-	 * @param user
-	 *            The user who sent the message. May not be null.
-	 * @param msg
-	 *            The sent message. May not be null.
-	 * @return True if the given message should be parsed by this command
-	 */
-	public boolean isHandled(Channel channel, User user, CommandMessage msg) {
-		for (String c : this.supportedCommands())
-			if (msg.isCommand(c))
-				return true;
-		return false;
-	}
-
 }
@@ -0,0 +1,34 @@
+package qorebot.plugins.commands;
+
+/**
+ * Thrown when parsing or evaluating a command line exceeds one of its budgets.
+ * The message is meant to be shown to the user who sent the line.
+ * 
+ * @author Ralph Broenink
+ * @see CommandLimits
+ */
+public class LimitExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final CommandLimits.Limit limit;
+
+	/**
+	 * Creates the exception.
+	 * 
+	 * @param limit
+	 *            The budget that was exceeded
+	 * @param message
+	 *            A description of the budget for the user
+	 */
+	public LimitExceededException(CommandLimits.Limit limit, String message) {
+		super(message);
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns the budget that was exceeded.
+	 */
+	public CommandLimits.Limit getLimit() {
+		return this.limit;
+	}
+}
@@ -1,8 +1,12 @@
 package qorebot.plugins.commands;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import qorebot.Channel;
 import qorebot.User;
@@ -20,10 +24,23 @@ import qorebot.plugins.commands.message.ExtendedMessage;
  * furthermore only be used in cases where it is not desired for messages to be
  * used in another command. This holds mostly true for management commands.
  * 
+ * By default, all messages are handled one at a time on a thread dedicated to
+ * this command. A command may instead return a concurrency limit from
+ * {@link #getConcurrency()}. Every message is then handled on its own (virtual,
+ * if available) thread, with at most that many messages at the same time and
+ * at most one message of every user, so users take turns instead of waiting
+ * for each other.
+ * 
  * @author Ralph Broenink
  */
 public abstract class ThreadedCommand extends Command implements Runnable {
-	private BlockingQueue<ExtendedMessage> queue = null;
+	/** The concurrency of a command that handles all messages on one thread */
+	public static final int SERIAL = 0;
+
+	static final ExecutorService EXECUTOR = ThreadedCommand.createExecutor();
+
+	private volatile BlockingQueue<ExtendedMessage> queue = null;
+	private volatile FairScheduler scheduler = null;
 
 	/**
 	 * Receives a message from the PluginCommand. When this is the first msg,
@@ -40,15 +57,91 @@ public abstract class ThreadedCommand extends Command implements Runnable {
 	@Override
 	public String receive(Channel channel, User user, CommandMessage msg) {
 		if (this.isHandled(channel, user, msg)) {
+			if (this.getConcurrency() > SERIAL) {
+				this.schedule(channel, user, msg);
+				return null;
+			}
+
 			if (this.queue == null) {
-				this.queue = new LinkedBlockingQueue<ExtendedMessage>();
-				new Thread(this).start();
+				synchronized (this) {
+					if (this.queue == null) {
+						this.queue = new LinkedBlockingQueue<ExtendedMessage>();
+						new Thread(this).start();
+					}
+				}
 			}
 			this.queue.offer(new ExtendedMessage(channel, user, msg));
 		}
 		return null;
 	}
 
+	/**
+	 * Schedules a message to be handled concurrently with messages of other
+	 * users.
+	 * 
+	 * @param channel
+	 *            The channel the message was received on. May be null.
+	 * @param user
+	 *            The user who sent the message.
+	 * @param msg
+	 *            The sent message.
+	 */
+	private void schedule(final Channel channel, final User user, final CommandMessage msg) {
+		if (this.scheduler == null) {
+			synchronized (this) {
+				if (this.scheduler == null)
+					this.scheduler = new FairScheduler(EXECUTOR, this.getConcurrency());
+			}
+		}
+
+		this.scheduler.submit(user != null ? user : this, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ThreadedCommand.this.handleMessage(channel, user, msg);
+				} catch (LimitExceededException ex) {
+					CommandLimits.rejected(ex);
+					Command.sendErrorMessage(channel, user, ex.getMessage());
+				} catch (RuntimeException ex) {
+					Logger.getLogger(ThreadedCommand.class.getName()).log(Level.SEVERE,
+							"Failed to handle message.", ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the maximum number of messages this command handles at the same
+	 * time, or SERIAL if all messages should be handled one at a time on a
+	 * single thread. Should always return the same value. Commands returning a
+	 * limit should be able to handle messages of different users concurrently.
+	 */
+	protected int getConcurrency() {
+		return SERIAL;
+	}
+
+	/**
+	 * Creates the executor shared by all concurrent commands. Uses a virtual
+	 * thread for every task when the JVM supports it, and a cached pool of
+	 * daemon threads otherwise.
+	 */
+	private static ExecutorService createExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception ex) {
+			Logger.getLogger(ThreadedCommand.class.getName()).log(Level.FINE,
+					"Virtual threads are not available, using a thread pool.");
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "qorebot-command");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
 	/**
 	 * This method continues to check whether there's a new item in the queue to
 	 * handle. When a new one is available, it will execute the handleEvent-
@@ -59,28 +152,14 @@ public abstract class ThreadedCommand extends Command implements Runnable {
 		while (true) {
 			try {
 				ExtendedMessage e = this.queue.take();
-				this.handleMessage(e.getChannel(), e.getUser(), e.getMessage());
+				try {
+					this.handleMessage(e.getChannel(), e.getUser(), e.getMessage());
+				} catch (LimitExceededException ex) {
+					CommandLimits.rejected(ex);
+					Command.sendErrorMessage(e.getChannel(), e.getUser(), ex.getMessage());
+				}
 			} catch (InterruptedException ex) {
 			}
 		}
 	}
-
-	/**
-	 * Returns true if the given message is parsed by this command. If this
-	 * returns false, handleMessage won't be executed.
-	 * 
-	 * @param channel
-	 *            The channel the message was received on. May be null.
-	 * @param user
-	 *            The user who sent the message. May not be null.
-	 * @param msg
-	 *            The sent message. May not be null.
-	 * @return True if the given message should be parsed by this command
-	 */
-	public boolean isHandled(Channel channel, User user, CommandMessage msg) {
-		for (String c : this.supportedCommands())
-			if (msg.isCommand(c))
-				return true;
-		return false;
-	}
 }
@@ -4,16 +4,26 @@ import java.util.ArrayList;
 import java.util.List;
 
 import qorebot.plugins.commands.Command;
+import qorebot.plugins.commands.LimitExceededException;
 
 
 /**
  * A message representing a command and therefore existing of several commands.
  * 
+ * A message created with {@link #createLazy(CommandMessage, String)} is only
+ * split as far as needed: {@link #getHead()} splits off the first message,
+ * while the rest is split when all messages are requested.
+ * 
  * @author Ralph Broenink
  */
 public class CommandMessage extends Message {
 	private List<Message> messages;
 
+	// Only set while a lazily created message has not been split completely
+	private volatile MessageTokenizer tokenizer = null;
+	private String text = null;
+	private int position = 0;
+
 	/**
 	 * Creates a new StringMessage.
 	 * 
@@ -65,13 +75,43 @@ public class CommandMessage extends Message {
 		this.messages = new ArrayList<Message>();
 	}
 
+	/**
+	 * Creates a CommandMessage that is split lazily. The text is only split
+	 * when the messages are requested, and only as far as needed.
+	 * 
+	 * @param parent
+	 *            The parent of this message
+	 * @param message
+	 *            The string message to convert to Messages
+	 */
+	public static CommandMessage createLazy(CommandMessage parent, String message) {
+		CommandMessage result = new CommandMessage(parent);
+		result.text = message;
+		result.tokenizer = new MessageTokenizer(result);
+		return result;
+	}
+
 	/**
 	 * Retrieves the string message.
 	 */
 	public List<Message> getMessages() {
+		this.split(Integer.MAX_VALUE);
 		return this.messages;
 	}
 
+	/**
+	 * Retrieves the first message, without splitting the rest of a lazily
+	 * created message.
+	 * 
+	 * @return The first message, or null if there are no messages
+	 */
+	public Message getHead() {
+		this.split(1);
+		synchronized (this) {
+			return this.messages.isEmpty() ? null : this.messages.get(0);
+		}
+	}
+
 	/**
 	 * Adds a message to this CommandMessage.
 	 * 
@@ -79,9 +119,56 @@ public class CommandMessage extends Message {
 	 *            The message to add
 	 */
 	public void addMessage(Message m) {
+		this.split(Integer.MAX_VALUE);
 		this.messages.add(m);
 	}
 
+	/**
+	 * Adds a message found by the tokenizer, without splitting any further.
+	 * 
+	 * @param m
+	 *            The message to add
+	 */
+	void addSplitMessage(Message m) {
+		this.messages.add(m);
+	}
+
+	/**
+	 * Continues splitting a lazily created message until it has the given
+	 * number of messages or the whole text has been split. Throws a
+	 * LimitExceededException if the text exceeds a budget of
+	 * {@link qorebot.plugins.commands.CommandLimits}.
+	 * 
+	 * @param count
+	 *            The number of messages needed
+	 */
+	private void split(int count) {
+		if (this.tokenizer == null)
+			return;
+
+		synchronized (this) {
+			if (this.tokenizer == null)
+				return;
+
+			int length = this.text.length();
+			try {
+				while (this.messages.size() < count && this.position < length)
+					this.tokenizer.feed(this.text.charAt(this.position++));
+			} catch (LimitExceededException ex) {
+				// Don't continue splitting a message that exceeds its budget
+				this.tokenizer = null;
+				this.text = null;
+				throw ex;
+			}
+
+			if (this.position == length && this.messages.size() < count) {
+				this.tokenizer.finish();
+				this.tokenizer = null;
+				this.text = null;
+			}
+		}
+	}
+
 	/**
 	 * Returns whether this Message is the specified command by checking whether
 	 * the first element of this message is actually a string message and equals
@@ -91,8 +178,9 @@ public class CommandMessage extends Message {
 	 *            The command
 	 */
 	public boolean isCommand(String s) {
-		if (this.getMessages().get(0) instanceof StringMessage) {
-			String msg = ((StringMessage) this.getMessages().get(0)).getMessage();
+		Message head = this.getHead();
+		if (head instanceof StringMessage) {
+			String msg = ((StringMessage) head).getMessage();
 			return Command.isCommand(msg, s);
 		} else
 			return false;
@@ -108,156 +196,12 @@ public class CommandMessage extends Message {
 	 * converted to another array.
 	 * 
 	 * @param message
+	 * @see MessageTokenizer
 	 */
 	public static CommandMessage splitMessage(CommandMessage parent, String message) {
-		int level = 0;
-		boolean firstWordInCommand = true;
-		boolean inString = false;
-		String matchedWord = "";
-		message = message.trim();
-		int length = message.length();
-
-		for (int i = 0; i < length; i++) {
-			char c = message.charAt(i);
-
-			// When we're at a deeper level then 0, we should recurse it.
-			// However, that should only be done when we're back at level 0.
-
-			// Test whether this is an escape character
-			if (c == '\\' && i + 1 < length) {
-				char n = message.charAt(i + 1);
-
-				// This is an escape character when it's followed by
-				// ", \, { or }
-				// However, when we're at level > 0, we should let the escape
-				// character where it was.
-				if (n == '"' || n == '\\' || n == '{' || n == '}') {
-					if (level > 0)
-						matchedWord += c;
-					matchedWord += n;
-					i++; // skip an extra letter
-					
-					// Not an escape character
-				} else {
-					matchedWord += c;
-				}
-
-			// When we can co any level lower (closer to 0), and we're
-			// currently
-			// not in a string, and we receive a } (which is not escaped)
-			} else if (!inString && level > 0 && c == '}') {
-				level--;
-				if (level == 0) {
-					parent.addMessage(new CommandMessage(parent, matchedWord));
-					matchedWord = "";
-				} else {
-					matchedWord += c;
-				}
-
-			// When we find a { (and we're not in a string) and we're not at
-			// the 0th level, we should add the { to our history.
-			} else if (!inString && c == '{') {
-				if (level != 0) {
-					matchedWord += c;
-				}
-				level++;
-
-			// Implictly, a command starting with a ! is a new level.
-			} else if (!inString && !firstWordInCommand && c == '!' && Character.isWhitespace(message.charAt(i - 1))) {
-				matchedWord += c;
-				level++;
-
-			} else if (level > 0) {
-				matchedWord += c;
-
-			// When we encouter a string delimiter, we should either end or
-			// start the string.
-			} else if (c == '"') {
-				if (inString) {
-					// Test whether the next character is a whitespace
-					// character.
-					// If not, it's not a special case.
-					if (i + 1 < length) {
-						char n = message.charAt(i + 1);
-						if (Character.isWhitespace(n)) {
-							inString = false;
-							parent.addMessage(new StringMessage(parent, matchedWord));
-							matchedWord = "";
-						} else {
-							matchedWord += c;
-						}
-					} else {
-						inString = false;
-						parent.addMessage(new StringMessage(parent, matchedWord));
-						matchedWord = "";
-					}
-				} else {
-					// Test whether the prev character is a whitespace
-					// character.
-					// If not, it's not a special case.
-					if (i > 0) {
-						char p = message.charAt(i - 1);
-						if (Character.isWhitespace(p)) {
-							inString = true;
-						} else {
-							matchedWord += c;
-						}
-					} else {
-						inString = true;
-					}
-				}
-			// When we're not in a string and encouter a whitespace
-			// character,
-			// we should end the current word.
-			// When we've found the last character, we should finish off.
-			} else if (!inString && (Character.isWhitespace(c) || i + 1 == length)) {
-				
-				if (i + 1 == length && !Character.isWhitespace(c))
-					matchedWord += c;
-
-				if (matchedWord.length() > 0) {
-					if (!firstWordInCommand && matchedWord.startsWith(Command.PREFIX)) {
-						if (level > 0) {
-							parent.addMessage(new CommandMessage(parent, matchedWord));
-						} else {
-							CommandMessage cm = new CommandMessage(parent);
-							cm.addMessage(new StringMessage(cm, matchedWord));
-							parent.addMessage(cm);
-						}
-					} else {
-						if (level > 0)
-							parent.addMessage(new CommandMessage(parent, matchedWord));
-						else
-							parent.addMessage(new StringMessage(parent, matchedWord));
-					}
-					matchedWord = "";
-				}
-				firstWordInCommand = false;
-
-				// No special case.
-			} else {
-				matchedWord += c;
-			}
-		}
-
-		if (matchedWord.length() > 0) {
-			if (!firstWordInCommand && matchedWord.startsWith(Command.PREFIX)) {
-				if (level > 0) {
-					parent.addMessage(new CommandMessage(parent, matchedWord));
-				} else {
-					CommandMessage cm = new CommandMessage(parent);
-					cm.addMessage(new StringMessage(cm, matchedWord));
-					parent.addMessage(cm);
-				}
-			} else {
-				if (level > 0)
-					parent.addMessage(new CommandMessage(parent, matchedWord));
-				else
-					parent.addMessage(new StringMessage(parent, matchedWord));
-			}
-			matchedWord = "";
-		}
-
+		MessageTokenizer tokenizer = new MessageTokenizer(parent);
+		tokenizer.feed(message, 0, message.length());
+		tokenizer.finish();
 		return parent;
 	}
 
@@ -265,7 +209,7 @@ public class CommandMessage extends Message {
 	public String toString() {
 		String s = "{";
 
-		for (Message m : this.messages)
+		for (Message m : this.getMessages())
 			s += " " + m.toString();
 		s += " }";
 		return s;
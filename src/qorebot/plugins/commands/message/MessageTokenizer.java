@@ -0,0 +1,360 @@
+package qorebot.plugins.commands.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import qorebot.plugins.commands.Command;
+import qorebot.plugins.commands.CommandLimits;
+import qorebot.plugins.commands.LimitExceededException;
+
+/**
+ * Splits text into the messages of a CommandMessage in a single pass. The
+ * text is fed one character at a time, without taking substrings or
+ * concatenating strings.
+ * 
+ * The result is equal to the result of the original, recursive implementation
+ * of {@link CommandMessage#splitMessage(CommandMessage, String)}. The text is
+ * trimmed, words are separated by whitespace, strings are
+ * grouped with "", subcommands with {} or implicitly by a ! after the first
+ * word, and ", \, { and } may be escaped with a \.
+ * 
+ * The tokenizer keeps a stack of the subcommands that are open. Only the
+ * innermost one splits the characters it receives into words. The
+ * subcommands enclosing it merely count the braces, to find out where it
+ * ends, so only braces, backslashes and exclamation marks are looked at by
+ * more than one of them. Characters that may be trimmed are held back until
+ * it's known they're not at the end of the innermost subcommand.
+ * 
+ * The nesting depth and the number of messages in the whole text are limited
+ * by {@link CommandLimits}, and so is the time of the line the text belongs
+ * to, which is checked every {@link #TIME_CHECK_INTERVAL} characters. When a
+ * limit is exceeded, a {@link LimitExceededException} is thrown and the text
+ * should not be fed any further.
+ * 
+ * @author Ralph Broenink
+ */
+class MessageTokenizer {
+	/** The number of characters fed between two checks of the time */
+	public static final int TIME_CHECK_INTERVAL = 256;
+
+	/**
+	 * A message on the stack of open subcommands.
+	 */
+	private static class Frame {
+		private final CommandMessage target;
+		private boolean used = false;
+
+		// Only used while a subcommand inside this message is open
+		private int level = 0;
+		private boolean escaped = false;
+
+		// Only used while this is the innermost message
+		private boolean started = false;
+		private boolean hasPrevious = false;
+		private char previous;
+		private boolean firstWord = true;
+		private boolean inString = false;
+
+		private Frame(CommandMessage target) {
+			this.target = target;
+		}
+	}
+
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private Frame inner;
+	private int tokens = 0;
+	private char previous = '\0';
+	private int escapes = 0;
+	private int fed = 0;
+
+	// State of the innermost message
+	private final StringBuilder word = new StringBuilder();
+	private final StringBuilder whitespace = new StringBuilder();
+	private boolean backslash = false;
+	private boolean quote = false;
+
+	/**
+	 * Creates a tokenizer adding all messages it finds to the given target.
+	 * 
+	 * @param target
+	 *            The message to add the split messages to
+	 */
+	MessageTokenizer(CommandMessage target) {
+		this.inner = new Frame(target);
+		this.frames.add(this.inner);
+	}
+
+	/**
+	 * Retrieves the message the split messages are added to.
+	 */
+	CommandMessage getTarget() {
+		return this.frames.get(0).target;
+	}
+
+	/**
+	 * Feeds a slice of text to the tokenizer.
+	 * 
+	 * @param text
+	 *            The text
+	 * @param start
+	 *            The index of the first character to feed
+	 * @param end
+	 *            The index after the last character to feed
+	 */
+	void feed(CharSequence text, int start, int end) {
+		for (int i = start; i < end; i++)
+			this.feed(text.charAt(i));
+	}
+
+	/**
+	 * Feeds a single character to the tokenizer.
+	 * 
+	 * @param c
+	 *            The character
+	 */
+	void feed(char c) {
+		if (++this.fed % MessageTokenizer.TIME_CHECK_INTERVAL == 0)
+			CommandLimits.checkTime();
+
+		char p = this.previous;
+		this.previous = c;
+		this.deliver(c, p, 0);
+	}
+
+	/**
+	 * Ends the text. Adds the last word and all open subcommands to their
+	 * targets.
+	 */
+	void finish() {
+		this.end(0, false);
+	}
+
+	/**
+	 * Passes a character to the open subcommands from the given depth on. Each
+	 * of them counts the braces in it, and the outermost one whose subcommand
+	 * ends with it closes that subcommand. Otherwise, the character is handled
+	 * by the innermost message.
+	 * 
+	 * @param c
+	 *            The character
+	 * @param p
+	 *            The character before it
+	 * @param from
+	 *            The depth of the outermost message that receives the
+	 *            character
+	 */
+	private void deliver(char c, char p, int from) {
+		int top = this.frames.size() - 1;
+		if (from < top && (c == '\\' || c == '{' || c == '}' || c == '!' || this.escapes > 0)) {
+			for (int i = from; i < top; i++) {
+				Frame f = this.frames.get(i);
+				if (f.escaped) {
+					f.escaped = false;
+					this.escapes--;
+					if (MessageTokenizer.isEscapable(c))
+						continue;
+				}
+
+				if (c == '\\') {
+					f.escaped = true;
+					this.escapes++;
+				} else if (c == '}') {
+					if (--f.level == 0) {
+						this.end(i, true);
+						return;
+					}
+				} else if (c == '{' || (c == '!' && !f.firstWord && Character.isWhitespace(p))) {
+					f.level++;
+				}
+			}
+		}
+
+		this.receive(c);
+	}
+
+	/**
+	 * Accepts the next character of the innermost message. Leading characters
+	 * that String.trim() would remove are ignored, other such characters are
+	 * held back until a character follows them.
+	 */
+	private void receive(char c) {
+		Frame f = this.inner;
+		if (c <= ' ') {
+			if (f.started)
+				this.whitespace.append(c);
+			return;
+		}
+		f.started = true;
+		f.used = true;
+
+		// A \ or the end of a string depends on the character after it
+		char next = (this.whitespace.length() > 0 ? this.whitespace.charAt(0) : c);
+		if (this.backslash) {
+			this.backslash = false;
+			if (MessageTokenizer.isEscapable(next)) {
+				this.word.append(next);
+				f.previous = next;
+				return;
+			}
+			this.word.append('\\');
+		} else if (this.quote) {
+			this.quote = false;
+			if (Character.isWhitespace(next))
+				this.endString(f);
+			else
+				this.word.append('"');
+		}
+
+		for (int i = 0; i < this.whitespace.length(); i++)
+			this.handle(f, this.whitespace.charAt(i));
+		this.whitespace.setLength(0);
+		this.handle(f, c);
+	}
+
+	/**
+	 * Handles a single character of the innermost message.
+	 * 
+	 * @param f
+	 *            The innermost message
+	 * @param c
+	 *            The character to handle
+	 */
+	private void handle(Frame f, char c) {
+		// Whether this is an escape character is known at the next character
+		if (c == '\\') {
+			this.backslash = true;
+
+		// Start of a subcommand, which includes the current word
+		} else if (!f.inString && c == '{') {
+			this.open(f);
+
+		// Implictly, a command starting with a ! is a new level.
+		} else if (!f.inString && !f.firstWord && c == '!' && Character.isWhitespace(f.previous)) {
+			this.open(f);
+			this.deliver(c, '\0', this.frames.size() - 1);
+
+		// String delimiters only count next to whitespace
+		} else if (c == '"') {
+			if (f.inString)
+				this.quote = true;
+			else if (!f.hasPrevious || Character.isWhitespace(f.previous))
+				f.inString = true;
+			else
+				this.word.append(c);
+
+		// End of a word
+		} else if (!f.inString && Character.isWhitespace(c)) {
+			if (this.word.length() > 0)
+				this.addWord(f);
+			f.firstWord = false;
+
+		} else {
+			this.word.append(c);
+		}
+
+		f.previous = c;
+		f.hasPrevious = true;
+	}
+
+	/**
+	 * Starts a subcommand inside the innermost message. The current word is
+	 * fed to the subcommand as its start.
+	 */
+	private void open(Frame f) {
+		int depth = this.frames.size();
+		if (depth > CommandLimits.getMaxDepth())
+			throw new LimitExceededException(CommandLimits.Limit.DEPTH,
+					"Subcommands may not be nested more than " + CommandLimits.getMaxDepth() + " levels deep.");
+
+		f.level = 1;
+		this.inner = new Frame(new CommandMessage(f.target));
+		this.frames.add(this.inner);
+
+		if (this.word.length() > 0) {
+			// Even if it consists of characters that are trimmed
+			this.inner.used = true;
+			String s = this.word.toString();
+			this.word.setLength(0);
+			for (int i = 0; i < s.length(); i++)
+				this.deliver(s.charAt(i), (i > 0 ? s.charAt(i - 1) : '\0'), depth);
+		}
+	}
+
+	/**
+	 * Ends the subcommands deeper than the given depth, innermost first, and
+	 * adds each of them to the message enclosing it.
+	 * 
+	 * @param depth
+	 *            The depth of the message that becomes the innermost message
+	 * @param closed
+	 *            True if the subcommand at depth + 1 has been closed
+	 *            explicitly, in which case it is added even if it's empty
+	 */
+	private void end(int depth, boolean closed) {
+		this.whitespace.setLength(0);
+		if (this.backslash) {
+			this.backslash = false;
+			this.word.append('\\');
+		} else if (this.quote) {
+			this.quote = false;
+			this.endString(this.inner);
+		}
+		if (this.word.length() > 0)
+			this.addWord(this.inner);
+
+		for (int i = this.frames.size() - 1; i > depth; i--) {
+			Frame child = this.frames.remove(i);
+			if (child.escaped)
+				this.escapes--;
+			if (child.used || (closed && i == depth + 1))
+				this.add(this.frames.get(i - 1), child.target);
+		}
+
+		this.inner = this.frames.get(depth);
+		this.inner.level = 0;
+		if (closed) {
+			this.inner.previous = '}';
+			this.inner.hasPrevious = true;
+		}
+	}
+
+	/**
+	 * Adds a message to a target, counting it for the whole text.
+	 */
+	private void add(Frame f, Message m) {
+		if (++this.tokens > CommandLimits.getMaxTokens())
+			throw new LimitExceededException(CommandLimits.Limit.TOKENS,
+					"A command may not consist of more than " + CommandLimits.getMaxTokens() + " words.");
+		f.target.addSplitMessage(m);
+	}
+
+	/**
+	 * Adds the current word to the target. A prefixed word that is not the
+	 * first word is a command by itself.
+	 */
+	private void addWord(Frame f) {
+		String s = this.word.toString();
+		this.word.setLength(0);
+
+		if (!f.firstWord && s.startsWith(Command.PREFIX)) {
+			CommandMessage cm = new CommandMessage(f.target);
+			cm.addSplitMessage(new StringMessage(cm, s));
+			this.add(f, cm);
+		} else {
+			this.add(f, new StringMessage(f.target, s));
+		}
+	}
+
+	/**
+	 * Adds the current word to the target as a string.
+	 */
+	private void endString(Frame f) {
+		f.inString = false;
+		this.add(f, new StringMessage(f.target, this.word.toString()));
+		this.word.setLength(0);
+	}
+
+	private static boolean isEscapable(char c) {
+		return c == '"' || c == '\\' || c == '{' || c == '}';
+	}
+}
@@ -0,0 +1,118 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of strings that can tell for certain that a string has never been
+ * added, but may be wrong when it says a string has been added. Strings can't
+ * be removed. The set takes a fixed amount of memory: about ten bits per
+ * string for a false positive rate of one percent.
+ * 
+ * The set is safe for use by multiple threads without locking.
+ * 
+ * @author Ralph Broenink
+ */
+public class BloomFilter {
+	private final AtomicLongArray bits;
+	private final long size;
+	private final int hashes;
+	private final int capacity;
+	private final AtomicLong insertions = new AtomicLong();
+
+	/**
+	 * Creates an empty filter.
+	 * 
+	 * @param capacity
+	 *            The number of strings that can be added before the false
+	 *            positive rate exceeds the given rate
+	 * @param falsePositiveRate
+	 *            The rate at which mightContain returns true for strings that
+	 *            haven't been added, between 0 and 1
+	 */
+	public BloomFilter(int capacity, double falsePositiveRate) {
+		this.capacity = Math.max(capacity, 1);
+		long bitCount = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.max((bitCount + 63) / 64, 1);
+		this.bits = new AtomicLongArray(words);
+		this.size = words * 64L;
+		this.hashes = (int) Math.max(Math.round((double) this.size / this.capacity * Math.log(2)), 1);
+	}
+
+	/**
+	 * Adds a string to the filter.
+	 * 
+	 * @param value
+	 *            The string to add. May not be null.
+	 */
+	public void put(String value) {
+		long h1 = BloomFilter.hash(value);
+		long h2 = BloomFilter.mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+		for (int i = 0; i < this.hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.size;
+			int index = (int) (bit >>> 6);
+			long mask = 1L << bit;
+
+			long word = this.bits.get(index);
+			while ((word & mask) == 0 && !this.bits.compareAndSet(index, word, word | mask))
+				word = this.bits.get(index);
+		}
+		this.insertions.incrementAndGet();
+	}
+
+	/**
+	 * Checks whether a string might have been added to the filter.
+	 * 
+	 * @param value
+	 *            The string to check. May not be null.
+	 * @return False if the string has certainly not been added, true if it
+	 *         probably has.
+	 */
+	public boolean mightContain(String value) {
+		long h1 = BloomFilter.hash(value);
+		long h2 = BloomFilter.mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+		for (int i = 0; i < this.hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.size;
+			if ((this.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of strings that can be added before the false
+	 * positive rate exceeds the rate the filter was created for.
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Returns the number of times a string has been added, including strings
+	 * that were added more than once.
+	 */
+	public long getInsertions() {
+		return this.insertions.get();
+	}
+
+	/**
+	 * Computes a 64 bit FNV-1a hash of the characters of the string.
+	 */
+	private static long hash(String value) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return BloomFilter.mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
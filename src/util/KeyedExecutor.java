@@ -0,0 +1,186 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes tasks on a fixed pool of threads, while tasks submitted with the
+ * same key are executed one at a time in the order they were submitted. Tasks
+ * with different keys may run in parallel.
+ * 
+ * The number of tasks waiting or running is bounded. When this bound has been
+ * reached, submitting a task blocks until another task has finished. Only a
+ * task submitted by a thread of a KeyedExecutor, which might be the thread
+ * that would finish that other task, never blocks; it is accepted beyond the
+ * bound instead.
+ * 
+ * @author Ralph Broenink
+ */
+public class KeyedExecutor {
+	private final ExecutorService pool;
+	private final Semaphore capacity;
+	private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+
+	/**
+	 * Creates the executor.
+	 * 
+	 * @param name
+	 *            The name of the threads in the pool
+	 * @param threads
+	 *            The number of threads in the pool
+	 * @param capacity
+	 *            The maximum number of tasks waiting or running
+	 */
+	public KeyedExecutor(final String name, int threads, int capacity) {
+		this.capacity = new Semaphore(capacity);
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Worker(r, name + "-" + this.count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Executes a task after all tasks previously submitted with the same key
+	 * have finished. Blocks while the executor is at its capacity, unless it
+	 * is called by a thread of a KeyedExecutor.
+	 * 
+	 * @param key
+	 *            The key determining the order of the task. Should not be null.
+	 * @param task
+	 *            The task to execute
+	 */
+	public void execute(Object key, Runnable task) {
+		boolean permit;
+		if (Thread.currentThread() instanceof Worker) {
+			permit = this.capacity.tryAcquire();
+		} else {
+			this.capacity.acquireUninterruptibly();
+			permit = true;
+		}
+
+		Lane lane;
+		boolean schedule;
+		synchronized (this.lanes) {
+			lane = this.lanes.get(key);
+			if (lane == null) {
+				lane = new Lane(key);
+				this.lanes.put(key, lane);
+			}
+			lane.tasks.add(new Entry(task, permit));
+			schedule = !lane.scheduled;
+			lane.scheduled = true;
+		}
+
+		if (schedule)
+			this.schedule(lane);
+	}
+
+	/**
+	 * Stops accepting new tasks. Tasks already submitted are still executed.
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	private void schedule(Lane lane) {
+		try {
+			this.pool.execute(lane);
+		} catch (RejectedExecutionException ex) {
+			Logger.getLogger(KeyedExecutor.class.getName()).log(Level.WARNING,
+					"Dropped tasks of a shut down executor.", ex);
+			synchronized (this.lanes) {
+				for (Entry entry : lane.tasks)
+					if (entry.permit)
+						this.capacity.release();
+				lane.tasks.clear();
+				lane.scheduled = false;
+				this.lanes.remove(lane.key);
+			}
+		}
+	}
+
+	/**
+	 * A thread of a KeyedExecutor.
+	 */
+	private static final class Worker extends Thread {
+		Worker(Runnable r, String name) {
+			super(r, name);
+		}
+	}
+
+	/**
+	 * A submitted task, and whether it holds a permit of the capacity.
+	 */
+	private static final class Entry {
+		final Runnable task;
+		final boolean permit;
+
+		Entry(Runnable task, boolean permit) {
+			this.task = task;
+			this.permit = permit;
+		}
+	}
+
+	/**
+	 * All tasks of a single key. A lane executes one task at a time and then
+	 * reschedules itself, so a busy key does not keep other keys from running.
+	 */
+	private final class Lane implements Runnable {
+		final Object key;
+		final Queue<Entry> tasks = new ArrayDeque<Entry>();
+		boolean scheduled = false;
+
+		Lane(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			Entry entry;
+			synchronized (KeyedExecutor.this.lanes) {
+				entry = this.tasks.poll();
+			}
+
+			try {
+				if (entry != null)
+					entry.task.run();
+			} catch (Throwable ex) {
+				// Errors are caught too: the lane has to go on, or its key
+				// would never receive another task
+				Logger.getLogger(KeyedExecutor.class.getName()).log(Level.SEVERE,
+						"Task failed to execute.", ex);
+			} finally {
+				if (entry != null && entry.permit)
+					KeyedExecutor.this.capacity.release();
+
+				boolean reschedule;
+				synchronized (KeyedExecutor.this.lanes) {
+					reschedule = !this.tasks.isEmpty();
+					if (!reschedule) {
+						this.scheduled = false;
+						KeyedExecutor.this.lanes.remove(this.key);
+					}
+				}
+
+				if (reschedule)
+					KeyedExecutor.this.schedule(this);
+			}
+		}
+	}
+}
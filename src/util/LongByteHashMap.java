@@ -0,0 +1,258 @@
+package util;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A hash map from primitive longs to primitive bytes. Keys and values are
+ * stored in plain arrays using open addressing with linear probing, so an
+ * entry takes about twenty bytes and nothing is boxed.
+ * 
+ * The map is safe for use by multiple threads. Lookups are optimistic and
+ * don't block unless they overlap with a change to the map, which is the
+ * usual case for a map that is read far more often than it is changed.
+ * 
+ * @author Ralph Broenink
+ */
+public class LongByteHashMap {
+	private static final int MIN_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private final StampedLock lock = new StampedLock();
+
+	private long[] keys;
+	private byte[] values;
+	private boolean[] used;
+	private int size = 0;
+
+	/**
+	 * Creates an empty map.
+	 */
+	public LongByteHashMap() {
+		this(LongByteHashMap.MIN_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty map that can hold the given number of entries without
+	 * growing.
+	 * 
+	 * @param expectedSize
+	 *            The number of entries expected
+	 */
+	public LongByteHashMap(int expectedSize) {
+		this.allocate(LongByteHashMap.capacityFor(expectedSize));
+	}
+
+	/**
+	 * Returns the value stored with the given key.
+	 * 
+	 * @param key
+	 *            The key to look up
+	 * @param missing
+	 *            The value to return if the key isn't in the map
+	 * @return The value, or missing if the key isn't in the map
+	 */
+	public byte get(long key, byte missing) {
+		long stamp = this.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			// The arrays may be replaced by a concurrent resize at any time
+			long[] k = this.keys;
+			byte[] v = this.values;
+			boolean[] u = this.used;
+			if (k.length == v.length && k.length == u.length) {
+				byte result = LongByteHashMap.find(k, v, u, key, missing);
+				if (this.lock.validate(stamp))
+					return result;
+			}
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return LongByteHashMap.find(this.keys, this.values, this.used, key, missing);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns whether a value is stored with the given key.
+	 * 
+	 * @param key
+	 *            The key to look up
+	 */
+	public boolean containsKey(long key) {
+		long stamp = this.lock.readLock();
+		try {
+			return this.indexOf(key) >= 0;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Stores a value with the given key, replacing the value stored earlier.
+	 * 
+	 * @param key
+	 *            The key
+	 * @param value
+	 *            The value to store
+	 */
+	public void put(long key, byte value) {
+		long stamp = this.lock.writeLock();
+		try {
+			if (this.size + 1 > this.keys.length * LongByteHashMap.LOAD_FACTOR)
+				this.resize(this.keys.length * 2);
+			if (this.insert(this.keys, this.values, this.used, key, value))
+				this.size++;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the value stored with the given key.
+	 * 
+	 * @param key
+	 *            The key
+	 * @return True if a value was removed
+	 */
+	public boolean remove(long key) {
+		long stamp = this.lock.writeLock();
+		try {
+			int index = this.indexOf(key);
+			if (index < 0)
+				return false;
+
+			// Move the entries after the removed one back, so every entry can
+			// still be reached from its own slot without any gaps
+			int mask = this.keys.length - 1;
+			int gap = index;
+			int i = (index + 1) & mask;
+			while (this.used[i]) {
+				int home = LongByteHashMap.slot(this.keys[i], mask);
+				if (((i - home) & mask) >= ((i - gap) & mask)) {
+					this.keys[gap] = this.keys[i];
+					this.values[gap] = this.values[i];
+					gap = i;
+				}
+				i = (i + 1) & mask;
+			}
+			this.used[gap] = false;
+			this.size--;
+			return true;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the map.
+	 */
+	public int size() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.size;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Removes all entries from the map.
+	 */
+	public void clear() {
+		long stamp = this.lock.writeLock();
+		try {
+			this.allocate(LongByteHashMap.MIN_CAPACITY);
+			this.size = 0;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Packs two ints into a single key.
+	 * 
+	 * @param high
+	 *            The int stored in the upper 32 bits
+	 * @param low
+	 *            The int stored in the lower 32 bits
+	 * @return The key
+	 */
+	public static long pack(int high, int low) {
+		return ((long) high << 32) | (low & 0xFFFFFFFFL);
+	}
+
+	private int indexOf(long key) {
+		int mask = this.keys.length - 1;
+		for (int i = LongByteHashMap.slot(key, mask); this.used[i]; i = (i + 1) & mask)
+			if (this.keys[i] == key)
+				return i;
+		return -1;
+	}
+
+	private static byte find(long[] keys, byte[] values, boolean[] used, long key, byte missing) {
+		int mask = keys.length - 1;
+		// Bounded, since a changing map might temporarily have no free slot
+		// on the way
+		for (int n = 0, i = LongByteHashMap.slot(key, mask); n < keys.length && used[i]; n++, i = (i + 1) & mask)
+			if (keys[i] == key)
+				return values[i];
+		return missing;
+	}
+
+	/**
+	 * Stores the value in the given arrays.
+	 * 
+	 * @return True if the key was new
+	 */
+	private boolean insert(long[] keys, byte[] values, boolean[] used, long key, byte value) {
+		int mask = keys.length - 1;
+		int i = LongByteHashMap.slot(key, mask);
+		while (used[i]) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		used[i] = true;
+		return true;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = this.keys;
+		byte[] oldValues = this.values;
+		boolean[] oldUsed = this.used;
+
+		long[] newKeys = new long[capacity];
+		byte[] newValues = new byte[capacity];
+		boolean[] newUsed = new boolean[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldUsed[i])
+				this.insert(newKeys, newValues, newUsed, oldKeys[i], oldValues[i]);
+
+		this.keys = newKeys;
+		this.values = newValues;
+		this.used = newUsed;
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new byte[capacity];
+		this.used = new boolean[capacity];
+	}
+
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = LongByteHashMap.MIN_CAPACITY;
+		while (capacity * LongByteHashMap.LOAD_FACTOR < expectedSize)
+			capacity <<= 1;
+		return capacity;
+	}
+}
@@ -0,0 +1,238 @@
+package qorebot.plugins.commands.message;
+
+import java.util.List;
+import java.util.Random;
+
+import qorebot.plugins.commands.Command;
+import qorebot.plugins.commands.LimitExceededException;
+
+/**
+ * Compares the messages found by {@link MessageTokenizer} with the messages
+ * found by the original, recursive implementation of
+ * {@link CommandMessage#splitMessage(CommandMessage, String)}, which is kept
+ * here as a reference. A number of known lines and a number of random lines
+ * are split by both, eagerly and lazily, and the resulting trees are compared
+ * node by node: the type of every message, the text of every string and the
+ * parent of every message.
+ * 
+ * The default budgets of CommandLimits apply, since the configuration file is
+ * not read.
+ * 
+ * Usage: MessageTokenizerTest [count [seed]]
+ * 
+ * Prints the lines that are split differently, and exits with status 1 if
+ * there are any.
+ * 
+ * @author Ralph Broenink
+ */
+public class MessageTokenizerTest {
+	private static final String[] LINES = {
+		"", "   ", "!echo", "!echo hello world", "  !echo   hello  ",
+		"!echo \"hello world\"", "!echo \"hello\"world\"", "!echo a\"b c\"",
+		"!echo {!reverse abc}", "!echo {!echo {!echo a} b} c", "!echo {}", "!echo { }",
+		"!echo !reverse abc", "!echo a !b c} d", "!echo {a !b} c", "x {a !b} c",
+		"!echo \\{a\\} \\\\ \\\"", "a\\{b{c}", "\\\\{\"a b\"}", "\\{{ }", "\\\\{}",
+		"!echo {\"a } b\"}", "!echo \"{a\"", "!echo {a \\}", "!echo \"a b ",
+		"!echo a !", "a {!b", "{a}{b}", "!echo {\t!echo\ta\t}", "a \u0001b \"c\u0001\"",
+	};
+
+	private static final String ALPHABET = "ab !{}\"\\ \t{}!\u0001";
+
+	public static void main(String[] args) {
+		int count = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+		long seed = (args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime());
+
+		int failures = 0;
+		int limited = 0;
+		for (String line : MessageTokenizerTest.LINES) {
+			int result = MessageTokenizerTest.compare(line);
+			if (result < 0)
+				failures++;
+			else if (result > 0)
+				limited++;
+		}
+
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(24);
+			for (int j = 0; j < length; j++)
+				sb.append(MessageTokenizerTest.ALPHABET.charAt(random.nextInt(MessageTokenizerTest.ALPHABET.length())));
+
+			int result = MessageTokenizerTest.compare(sb.toString());
+			if (result < 0)
+				failures++;
+			else if (result > 0)
+				limited++;
+		}
+
+		System.out.println((MessageTokenizerTest.LINES.length + count) + " lines compared with seed " + seed + ", "
+				+ limited + " exceeded a limit, " + failures + " split differently.");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Splits a line with both implementations and prints the line if the
+	 * results differ.
+	 * 
+	 * @return 0 if the results are equal, 1 if the line exceeds a limit of
+	 *         CommandLimits and -1 if the results differ
+	 */
+	private static int compare(String line) {
+		CommandMessage expected = MessageTokenizerTest.reference(new CommandMessage(null), line);
+
+		CommandMessage actual;
+		CommandMessage lazy;
+		Message lazyHead;
+		try {
+			actual = new CommandMessage(null, line);
+			lazy = CommandMessage.createLazy(null, line);
+			lazyHead = lazy.getHead();
+			lazy.getMessages();
+		} catch (LimitExceededException ex) {
+			return 1;
+		}
+
+		List<Message> messages = expected.getMessages();
+		Message head = (messages.isEmpty() ? null : messages.get(0));
+		String difference = MessageTokenizerTest.difference(expected, actual, null, "eager: ");
+		if (difference == null)
+			difference = MessageTokenizerTest.difference(expected, lazy, null, "lazy: ");
+		if (difference == null)
+			difference = MessageTokenizerTest.difference(head, lazyHead, lazy, "head: ");
+		if (difference == null)
+			return 0;
+
+		System.out.println("Line [" + line + "] " + difference);
+		return -1;
+	}
+
+	/**
+	 * Compares two trees of messages.
+	 * 
+	 * @param parent
+	 *            The parent the actual message should have
+	 * @return A description of the first difference, or null if the trees are
+	 *         equal
+	 */
+	private static String difference(Message expected, Message actual, Message parent, String path) {
+		if (expected == null || actual == null)
+			return (expected == actual ? null : path + "expected " + expected + ", found " + actual);
+		if (actual.getParent() != parent)
+			return path + "wrong parent of " + actual;
+		if (expected.getClass() != actual.getClass())
+			return path + "expected " + expected + ", found " + actual;
+
+		if (expected instanceof StringMessage) {
+			String e = ((StringMessage) expected).getMessage();
+			String a = ((StringMessage) actual).getMessage();
+			return (e.equals(a) ? null : path + "expected string [" + e + "], found [" + a + "]");
+		}
+
+		List<Message> e = ((CommandMessage) expected).getMessages();
+		List<Message> a = ((CommandMessage) actual).getMessages();
+		if (e.size() != a.size())
+			return path + "expected " + expected + ", found " + actual;
+		for (int i = 0; i < e.size(); i++) {
+			String difference = MessageTokenizerTest.difference(e.get(i), a.get(i), actual, path + i + ".");
+			if (difference != null)
+				return difference;
+		}
+		return null;
+	}
+
+	/**
+	 * The original implementation of
+	 * {@link CommandMessage#splitMessage(CommandMessage, String)}.
+	 */
+	private static CommandMessage reference(CommandMessage parent, String message) {
+		int level = 0;
+		boolean firstWordInCommand = true;
+		boolean inString = false;
+		String matchedWord = "";
+		message = message.trim();
+		int length = message.length();
+
+		for (int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+
+			if (c == '\\' && i + 1 < length) {
+				char n = message.charAt(i + 1);
+				if (n == '"' || n == '\\' || n == '{' || n == '}') {
+					if (level > 0)
+						matchedWord += c;
+					matchedWord += n;
+					i++;
+				} else {
+					matchedWord += c;
+				}
+
+			} else if (!inString && level > 0 && c == '}') {
+				level--;
+				if (level == 0) {
+					parent.addMessage(MessageTokenizerTest.reference(new CommandMessage(parent), matchedWord));
+					matchedWord = "";
+				} else {
+					matchedWord += c;
+				}
+
+			} else if (!inString && c == '{') {
+				if (level != 0)
+					matchedWord += c;
+				level++;
+
+			} else if (!inString && !firstWordInCommand && c == '!' && Character.isWhitespace(message.charAt(i - 1))) {
+				matchedWord += c;
+				level++;
+
+			} else if (level > 0) {
+				matchedWord += c;
+
+			} else if (c == '"') {
+				if (inString) {
+					if (i + 1 < length && !Character.isWhitespace(message.charAt(i + 1))) {
+						matchedWord += c;
+					} else {
+						inString = false;
+						parent.addMessage(new StringMessage(parent, matchedWord));
+						matchedWord = "";
+					}
+				} else {
+					if (i == 0 || Character.isWhitespace(message.charAt(i - 1)))
+						inString = true;
+					else
+						matchedWord += c;
+				}
+
+			} else if (!inString && (Character.isWhitespace(c) || i + 1 == length)) {
+				if (i + 1 == length && !Character.isWhitespace(c))
+					matchedWord += c;
+				if (matchedWord.length() > 0) {
+					MessageTokenizerTest.addWord(parent, matchedWord, level, firstWordInCommand);
+					matchedWord = "";
+				}
+				firstWordInCommand = false;
+
+			} else {
+				matchedWord += c;
+			}
+		}
+
+		if (matchedWord.length() > 0)
+			MessageTokenizerTest.addWord(parent, matchedWord, level, firstWordInCommand);
+		return parent;
+	}
+
+	private static void addWord(CommandMessage parent, String word, int level, boolean firstWord) {
+		if (level > 0) {
+			parent.addMessage(MessageTokenizerTest.reference(new CommandMessage(parent), word));
+		} else if (!firstWord && word.startsWith(Command.PREFIX)) {
+			CommandMessage cm = new CommandMessage(parent);
+			cm.addMessage(new StringMessage(cm, word));
+			parent.addMessage(cm);
+		} else {
+			parent.addMessage(new StringMessage(parent, word));
+		}
+	}
+}